@@ -0,0 +1,159 @@
+package se.marza.lucene;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Files of the implementation under test, chosen by a benchmark parameter:
+ * <ul>
+ * <li>{@code hfile:<blockSize>} - {@link HFile} written with {@link HOutputStream}, read with {@link HInputStream}</li>
+ * <li>{@code hdirect:<blockSize>} - off-heap {@link HDirectFile}</li>
+ * <li>{@code ram} - Lucene's {@link RAMDirectory}</li>
+ * <li>{@code mmap} - Lucene's {@link MMapDirectory} on a temporary directory</li>
+ * </ul>
+ * {@link HFile}s are kept in a plain map so that only the streams are measured, not the cluster.
+ *
+ * @author Marza
+ */
+final class BenchmarkFiles implements Closeable {
+
+    private final String kind;
+    private final int blockSize;
+    private final Map<String, HFile> files = new HashMap<>();
+    private final Directory directory;
+    private final Path path;
+    private SerializationService serializationService;
+
+    BenchmarkFiles(String impl) throws IOException {
+        int colon = impl.indexOf(':');
+        this.kind = colon < 0 ? impl : impl.substring(0, colon);
+        this.blockSize = colon < 0 ? 0 : Integer.parseInt(impl.substring(colon + 1));
+        switch (kind) {
+            case "hfile":
+            case "hdirect":
+                directory = null;
+                path = null;
+                break;
+            case "ram":
+                directory = new RAMDirectory();
+                path = null;
+                break;
+            case "mmap":
+                path = Files.createTempDirectory("lucene-hazelcast-bench");
+                directory = new MMapDirectory(path);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown implementation: " + impl);
+        }
+    }
+
+    IndexOutput createOutput(String name) throws IOException {
+        switch (kind) {
+            case "hfile": {
+                HFile file = new HFile(null, blockSize);
+                files.put(name, file);
+                return new HOutputStream(name, file);
+            }
+            case "hdirect": {
+                HDirectFile file = new HDirectFile(null, blockSize);
+                files.put(name, file);
+                return new HDirectOutputStream(name, file);
+            }
+            default:
+                return directory.createOutput(name, IOContext.DEFAULT);
+        }
+    }
+
+    IndexInput openInput(String name) throws IOException {
+        if (directory != null) {
+            return directory.openInput(name, IOContext.DEFAULT);
+        }
+        HFile file = file(name);
+        if (file instanceof HDirectFile) {
+            return new HDirectInputStream((HDirectFile) file, name);
+        }
+        return new HInputStream(file, name);
+    }
+
+    void deleteFile(String name) throws IOException {
+        if (directory != null) {
+            directory.deleteFile(name);
+        } else if (files.remove(name) == null) {
+            throw new FileNotFoundException(name);
+        }
+    }
+
+    /**
+     * Writes a file of random bytes.
+     */
+    void writeRandom(String name, int length, long seed) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        try (IndexOutput out = createOutput(name)) {
+            out.writeBytes(bytes, bytes.length);
+        }
+    }
+
+    /**
+     * Moves a file the way the implementation would over the network: serialized and deserialized
+     * for {@link HFile}s, copied to another file for the Lucene baselines.
+     *
+     * @return the copy.
+     */
+    Object roundTrip(String name) throws IOException {
+        if (directory != null) {
+            String copy = name + ".copy";
+            directory.copyFrom(directory, name, copy, IOContext.DEFAULT);
+            long length = directory.fileLength(copy);
+            directory.deleteFile(copy);
+            return length;
+        }
+        if (serializationService == null) {
+            serializationService = new DefaultSerializationServiceBuilder()
+                    .addDataSerializableFactory(HFile.HazelcastDataSerializableFactory.FACTORY_ID,
+                            new HFile.HazelcastDataSerializableFactory())
+                    .build();
+        }
+        Data data = serializationService.toData(file(name));
+        return serializationService.toObject(data);
+    }
+
+    private HFile file(String name) throws FileNotFoundException {
+        HFile file = files.get(name);
+        if (file == null) {
+            throw new FileNotFoundException(name);
+        }
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        files.clear();
+        if (serializationService != null) {
+            serializationService.destroy();
+        }
+        if (directory != null) {
+            directory.close();
+        }
+        if (path != null) {
+            IOUtils.rm(path);
+        }
+    }
+}
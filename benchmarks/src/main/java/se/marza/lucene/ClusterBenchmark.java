@@ -0,0 +1,322 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * End-to-end benchmark of a cluster of N members in this JVM, talking over loopback.
+ * <p>
+ * The first member indexes a synthetic corpus through an {@link IndexWriter}, committing at a fixed
+ * interval, and force merges the index. The other members (or the first one when alone) then run a
+ * mixed query workload on their own {@link HazelcastDirectory} of the same index. Reported are
+ * docs/sec, commit and query latencies, and the bytes every directory moved to and from the cluster
+ * as counted by its {@link HMetrics}, which includes partitions owned by the member itself.
+ * <p>
+ * Arguments are {@code key=value} pairs, see {@link #DEFAULTS}:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar se.marza.lucene.ClusterBenchmark members=3 docs=200000 mode=CHUNKED
+ * </pre>
+ *
+ * @author Marza
+ */
+public final class ClusterBenchmark {
+
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("members", "3");
+        DEFAULTS.put("mode", "CHUNKED");
+        DEFAULTS.put("docs", "100000");
+        DEFAULTS.put("commitEvery", "10000");
+        DEFAULTS.put("maxSegments", "1");
+        DEFAULTS.put("queries", "20000");
+        DEFAULTS.put("threads", "4");
+        DEFAULTS.put("vocabulary", "20000");
+        DEFAULTS.put("seed", "42");
+    }
+
+    private static final String INDEX = "bench";
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final String[] vocabulary;
+    private final double[] cumulative;
+
+    private ClusterBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(longOption("seed"));
+        this.vocabulary = new String[intOption("vocabulary")];
+        this.cumulative = new double[vocabulary.length];
+        double sum = 0;
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = word(i);
+            // Zipf distribution, a few words are very common
+            sum += 1d / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                throw new IllegalArgumentException("unknown argument: " + arg + ", expected key=value with key in "
+                        + DEFAULTS.keySet());
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new ClusterBenchmark(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int numMembers = intOption("members");
+        HazelcastDirectory.StorageMode mode = HazelcastDirectory.StorageMode.valueOf(options.get("mode"));
+        System.out.println("options " + options);
+
+        Config config = config();
+        List<HazelcastInstance> members = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numMembers; i++) {
+            members.add(Hazelcast.newHazelcastInstance(config));
+        }
+        System.out.printf("started %d members in %d ms%n", numMembers, millisSince(start));
+
+        List<HazelcastDirectory> directories = new ArrayList<>();
+        for (HazelcastInstance member : members) {
+            directories.add(new HazelcastDirectory(member, INDEX, mode));
+        }
+        try {
+            index(directories.get(0));
+            search(numMembers == 1 ? directories : directories.subList(1, numMembers));
+            for (int i = 0; i < directories.size(); i++) {
+                HMetrics metrics = directories.get(i).getMetrics();
+                System.out.printf("member %d: written %s, fetched %s in %d fetches%n", i,
+                        bytes(metrics.getBytesWritten()), bytes(metrics.getBytesFetched()),
+                        metrics.getCount(HMetrics.Op.FETCH));
+            }
+        } finally {
+            directories.get(0).destroy();
+            for (HazelcastInstance member : members) {
+                member.shutdown();
+            }
+        }
+    }
+
+    private Config config() {
+        Config config = HazelcastDirectory.configure(new Config());
+        config.getGroupConfig().setName("lucene-hazelcast-bench-" + UUID.randomUUID());
+        config.setProperty("hazelcast.phone.home.enabled", "false");
+        config.setProperty("hazelcast.health.monitoring.level", "OFF");
+        config.setProperty("hazelcast.wait.seconds.before.join", "1");
+        config.getNetworkConfig().setPort(5701).setPortAutoIncrement(true);
+        config.getNetworkConfig().getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+
+    private void index(HazelcastDirectory directory) throws IOException {
+        int numDocs = intOption("docs");
+        int commitEvery = intOption("commitEvery");
+        long[] commits = new long[(numDocs + commitEvery - 1) / commitEvery];
+        int numCommits = 0;
+
+        long start = System.nanoTime();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < numDocs; i++) {
+                writer.addDocument(document(i));
+                if ((i + 1) % commitEvery == 0 || i == numDocs - 1) {
+                    long commitStart = System.nanoTime();
+                    writer.commit();
+                    commits[numCommits++] = System.nanoTime() - commitStart;
+                }
+            }
+            long indexNanos = System.nanoTime() - start;
+            System.out.printf("indexed %d docs in %d ms, %.0f docs/sec%n", numDocs,
+                    TimeUnit.NANOSECONDS.toMillis(indexNanos), numDocs / (indexNanos / 1e9));
+            System.out.println("commit latency " + percentiles(commits, numCommits));
+
+            long mergeStart = System.nanoTime();
+            writer.forceMerge(intOption("maxSegments"));
+            writer.commit();
+            System.out.printf("force merged to %s segments in %d ms%n", options.get("maxSegments"),
+                    millisSince(mergeStart));
+        }
+    }
+
+    private void search(List<HazelcastDirectory> directories) throws Exception {
+        int numQueries = intOption("queries");
+        int threads = intOption("threads");
+        int perThread = Math.max(1, numQueries / (threads * directories.size()));
+
+        List<DirectoryReader> readers = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads * directories.size());
+        try {
+            long openStart = System.nanoTime();
+            for (HazelcastDirectory directory : directories) {
+                readers.add(DirectoryReader.open(directory));
+            }
+            System.out.printf("opened %d readers in %d ms%n", readers.size(), millisSince(openStart));
+
+            List<Future<long[]>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < readers.size(); i++) {
+                IndexSearcher searcher = new IndexSearcher(readers.get(i));
+                for (int t = 0; t < threads; t++) {
+                    long seed = random.nextLong();
+                    futures.add(executor.submit(() -> runQueries(searcher, perThread, new Random(seed))));
+                }
+            }
+            long[] latencies = new long[perThread * futures.size()];
+            int n = 0;
+            for (Future<long[]> future : futures) {
+                long[] threadLatencies = future.get();
+                System.arraycopy(threadLatencies, 0, latencies, n, threadLatencies.length);
+                n += threadLatencies.length;
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("ran %d queries on %d members in %d ms, %.0f queries/sec%n", n, readers.size(),
+                    TimeUnit.NANOSECONDS.toMillis(nanos), n / (nanos / 1e9));
+            System.out.println("query latency " + percentiles(latencies, n));
+        } finally {
+            executor.shutdown();
+            for (DirectoryReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private long[] runQueries(IndexSearcher searcher, int numQueries, Random random) throws IOException {
+        long[] latencies = new long[numQueries];
+        for (int i = 0; i < numQueries; i++) {
+            Query query = query(random);
+            long start = System.nanoTime();
+            searcher.search(query, 10);
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    private Document document(int id) {
+        int length = 50 + random.nextInt(100);
+        StringBuilder body = new StringBuilder(length * 8);
+        for (int i = 0; i < length; i++) {
+            body.append(randomWord(random)).append(' ');
+        }
+        Document document = new Document();
+        document.add(new StringField("id", Integer.toString(id), Field.Store.YES));
+        document.add(new TextField("body", body.toString(), Field.Store.YES));
+        document.add(new LongField("timestamp", id, Field.Store.NO));
+        return document;
+    }
+
+    private Query query(Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return new TermQuery(new Term("body", randomWord(random)));
+            case 1: {
+                BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                builder.add(new TermQuery(new Term("body", randomWord(random))), BooleanClause.Occur.MUST);
+                builder.add(new TermQuery(new Term("body", randomWord(random))), BooleanClause.Occur.MUST);
+                return builder.build();
+            }
+            case 2: {
+                PhraseQuery.Builder builder = new PhraseQuery.Builder();
+                builder.add(new Term("body", randomWord(random)));
+                builder.add(new Term("body", randomWord(random)));
+                return builder.build();
+            }
+            case 3:
+                return new PrefixQuery(new Term("body", randomWord(random).substring(0, 2)));
+            default: {
+                long from = random.nextInt(intOption("docs"));
+                return NumericRangeQuery.newLongRange("timestamp", from, from + 1000, true, false);
+            }
+        }
+    }
+
+    private String randomWord(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return vocabulary[Math.min(vocabulary.length - 1, index < 0 ? -index - 1 : index)];
+    }
+
+    private static String word(int i) {
+        StringBuilder word = new StringBuilder();
+        do {
+            word.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        // every word has at least two letters for prefix queries
+        return word.length() == 1 ? word.append('a').toString() : word.toString();
+    }
+
+    private static String percentiles(long[] nanos, int n) {
+        long[] sorted = Arrays.copyOf(nanos, n);
+        Arrays.sort(sorted);
+        return String.format("p50=%.2fms p99=%.2fms max=%.2fms", percentile(sorted, 50), percentile(sorted, 99),
+                percentile(sorted, 100));
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile / 100d) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static String bytes(long bytes) {
+        return String.format("%.1fMB", bytes / (1024d * 1024d));
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private int intOption(String key) {
+        return Integer.parseInt(options.get(key));
+    }
+
+    private long longOption(String key) {
+        return Long.parseLong(options.get(key));
+    }
+}
@@ -0,0 +1,56 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization round trip of {@link HFile} and {@link HDirectFile}, the cost of moving a file
+ * through the cluster, against copying the same file within Lucene's directories.
+ *
+ * @author Marza
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HFileSerializationBenchmark {
+
+    @Param({"hfile:1024", "hfile:8192", "hfile:65536", "hdirect:8192", "ram", "mmap"})
+    public String impl;
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    private BenchmarkFiles files;
+
+    @Setup
+    public void setUp() throws IOException {
+        files = new BenchmarkFiles(impl);
+        files.writeRandom("data", fileSize, 42);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        files.close();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException {
+        return files.roundTrip("data");
+    }
+}
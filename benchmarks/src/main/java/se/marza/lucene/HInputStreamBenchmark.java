@@ -0,0 +1,178 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads of {@link HInputStream} and {@link HDirectInputStream} against Lucene's own inputs.
+ *
+ * @author Marza
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HInputStreamBenchmark {
+    private static final int SEEKS = 1024;
+    private static final int SLICE_DEPTH = 16;
+
+    @Param({"hfile:1024", "hfile:8192", "hfile:65536", "hdirect:8192", "ram", "mmap"})
+    public String impl;
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    private BenchmarkFiles files;
+    private IndexInput input;
+    private IndexInput vInts;
+    private int numVInts;
+    private RandomAccessInput randomAccess;
+    private long[] positions;
+    private final byte[] buffer = new byte[4096];
+
+    @Setup
+    public void setUp() throws IOException {
+        files = new BenchmarkFiles(impl);
+        files.writeRandom("data", fileSize, 42);
+        input = files.openInput("data");
+        writeVInts();
+        vInts = files.openInput("vints");
+        randomAccess = input.randomAccessSlice(0, fileSize);
+        Random random = new Random(42);
+        positions = new long[SEEKS];
+        for (int i = 0; i < SEEKS; i++) {
+            positions[i] = (long) (random.nextDouble() * (fileSize - Long.BYTES));
+        }
+    }
+
+    /**
+     * Writes 4 byte vInts, about as many bytes as the data file. With a fixed length decoding dominates
+     * instead of mispredicted branches on the length.
+     */
+    private void writeVInts() throws IOException {
+        Random random = new Random(42);
+        try (IndexOutput out = files.createOutput("vints")) {
+            while (out.getFilePointer() < fileSize - 5) {
+                out.writeVInt(1 << 21 | random.nextInt(1 << 21));
+                numVInts++;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        vInts.close();
+        input.close();
+        files.close();
+    }
+
+    @Benchmark
+    public long readByte() throws IOException {
+        IndexInput in = input.clone();
+        in.seek(0);
+        long sum = 0;
+        for (int i = 0; i < fileSize; i++) {
+            sum += in.readByte();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public byte readBytes() throws IOException {
+        IndexInput in = input.clone();
+        in.seek(0);
+        for (long remaining = fileSize; remaining > 0; ) {
+            int length = (int) Math.min(buffer.length, remaining);
+            in.readBytes(buffer, 0, length);
+            remaining -= length;
+        }
+        return buffer[0];
+    }
+
+    @Benchmark
+    public long readInt() throws IOException {
+        IndexInput in = input.clone();
+        in.seek(0);
+        long sum = 0;
+        for (int i = fileSize / Integer.BYTES; i > 0; i--) {
+            sum += in.readInt();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readLong() throws IOException {
+        IndexInput in = input.clone();
+        in.seek(0);
+        long sum = 0;
+        for (int i = fileSize / Long.BYTES; i > 0; i--) {
+            sum += in.readLong();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long readVInt() throws IOException {
+        IndexInput in = vInts.clone();
+        in.seek(0);
+        long sum = 0;
+        for (int i = numVInts; i > 0; i--) {
+            sum += in.readVInt();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long seek() throws IOException {
+        IndexInput in = input.clone();
+        long sum = 0;
+        for (long position : positions) {
+            in.seek(position);
+            sum += in.readByte();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long randomAccessReadLong() throws IOException {
+        long sum = 0;
+        for (long position : positions) {
+            sum += randomAccess.readLong(position);
+        }
+        return sum;
+    }
+
+    /**
+     * Slices a slice {@value #SLICE_DEPTH} times, each one byte shorter on both ends, reading from every level.
+     */
+    @Benchmark
+    public long nestedSlice() throws IOException {
+        IndexInput in = input;
+        long sum = 0;
+        for (int i = 0; i < SLICE_DEPTH; i++) {
+            in = in.slice("slice" + i, 1, in.length() - 2);
+            in.seek(in.length() / 2);
+            sum += in.readByte();
+        }
+        return sum;
+    }
+}
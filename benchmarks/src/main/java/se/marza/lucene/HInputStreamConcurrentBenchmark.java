@@ -0,0 +1,74 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IndexInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many threads reading clones of one input of a hot file, as searcher threads do.
+ *
+ * @author Marza
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class HInputStreamConcurrentBenchmark {
+
+    @Param({"hfile:1024", "hfile:8192", "hdirect:8192", "ram", "mmap"})
+    public String impl;
+
+    @Param({"1048576"})
+    public int fileSize;
+
+    private BenchmarkFiles files;
+    private IndexInput input;
+
+    @Setup
+    public void setUp() throws IOException {
+        files = new BenchmarkFiles(impl);
+        files.writeRandom("data", fileSize, 42);
+        input = files.openInput("data");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        input.close();
+        files.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        final byte[] bytes = new byte[256];
+    }
+
+    @Benchmark
+    public byte readBytes(Buffer buffer) throws IOException {
+        IndexInput in = input.clone();
+        in.seek(0);
+        byte[] bytes = buffer.bytes;
+        for (long remaining = fileSize; remaining > 0; ) {
+            int length = (int) Math.min(bytes.length, remaining);
+            in.readBytes(bytes, 0, length);
+            remaining -= length;
+        }
+        return bytes[0];
+    }
+}
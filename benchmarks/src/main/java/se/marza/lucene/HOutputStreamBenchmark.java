@@ -0,0 +1,107 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IndexOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes of {@link HOutputStream} and {@link HDirectOutputStream} against Lucene's own outputs,
+ * all of them computing the CRC of the file.
+ *
+ * @author Marza
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HOutputStreamBenchmark {
+
+    @Param({"hfile:1024", "hfile:8192", "hfile:65536", "hdirect:8192", "ram", "mmap"})
+    public String impl;
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    private BenchmarkFiles files;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        files = new BenchmarkFiles(impl);
+        bytes = new byte[4096];
+        new Random(42).nextBytes(bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        files.close();
+    }
+
+    @Benchmark
+    public long writeByte() throws IOException {
+        long checksum;
+        try (IndexOutput out = files.createOutput("out")) {
+            for (int i = 0; i < fileSize; i++) {
+                out.writeByte(bytes[i & (bytes.length - 1)]);
+            }
+            checksum = out.getChecksum();
+        }
+        files.deleteFile("out");
+        return checksum;
+    }
+
+    @Benchmark
+    public long writeInt() throws IOException {
+        long checksum;
+        try (IndexOutput out = files.createOutput("out")) {
+            for (int i = fileSize / Integer.BYTES; i > 0; i--) {
+                out.writeInt(i);
+            }
+            checksum = out.getChecksum();
+        }
+        files.deleteFile("out");
+        return checksum;
+    }
+
+    @Benchmark
+    public long writeLong() throws IOException {
+        long checksum;
+        try (IndexOutput out = files.createOutput("out")) {
+            for (int i = fileSize / Long.BYTES; i > 0; i--) {
+                out.writeLong(i * 0x9E3779B97F4A7C15L);
+            }
+            checksum = out.getChecksum();
+        }
+        files.deleteFile("out");
+        return checksum;
+    }
+
+    @Benchmark
+    public long writeBytes() throws IOException {
+        long checksum;
+        try (IndexOutput out = files.createOutput("out")) {
+            for (int remaining = fileSize; remaining > 0; remaining -= bytes.length) {
+                out.writeBytes(bytes, Math.min(bytes.length, remaining));
+            }
+            checksum = out.getChecksum();
+        }
+        files.deleteFile("out");
+        return checksum;
+    }
+}
@@ -0,0 +1,197 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.lucene.util.Accountable;
+
+/**
+ * Member-local cache of file blocks, bounded by the total number of bytes held
+ * and evicting the least recently used blocks first.
+ * <p>
+ * Blocks are keyed by file name, qualified with the directory name, file id and block index. Lucene files are written once
+ * and an overwritten file gets a new id, so a cached block is never stale. {@link HazelcastDirectory} drops the blocks
+ * of deleted files through {@link #invalidate(String)} to free their space early, any others age out.
+ *
+ * @author Marza
+ */
+public final class HBlockCache implements Accountable {
+
+    private final long maxSizeInBytes;
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final Cache<BlockKey, byte[]> cache;
+    /** Cached blocks by file name, so that invalidating a file does not scan the whole cache. */
+    private final ConcurrentMap<String, Set<BlockKey>> keysByName = new ConcurrentHashMap<>();
+
+    public HBlockCache(long maxSizeInBytes) {
+        if (maxSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeInBytes must be positive: " + maxSizeInBytes);
+        }
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .<BlockKey, byte[]>weigher((key, block) -> block.length)
+                .<BlockKey, byte[]>removalListener(notification -> {
+                    sizeInBytes.addAndGet(-notification.getValue().length);
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        unindex(notification.getKey());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns a cached block, loading it on a miss. Concurrent misses on the same block share one load.
+     *
+     * @param name   file name.
+     * @param fileId id of the file, see {@link HFileHeader#getFileId()}.
+     * @param index  block index.
+     * @param loader fetches the block from the cluster.
+     * @return the block.
+     * @throws IOException if the loader failed.
+     */
+    byte[] get(String name, long fileId, int index, Callable<byte[]> loader) throws IOException {
+        try {
+            BlockKey key = new BlockKey(name, fileId, index);
+            return cache.get(key, () -> {
+                byte[] block = loader.call();
+                sizeInBytes.addAndGet(block.length);
+                index(key);
+                return block;
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to load block " + index + " of " + name, e.getCause());
+        }
+    }
+
+    /**
+     * Adds a block that was fetched ahead of use.
+     */
+    void put(String name, long fileId, int index, byte[] block) {
+        BlockKey key = new BlockKey(name, fileId, index);
+        sizeInBytes.addAndGet(block.length);
+        index(key);
+        cache.put(key, block);
+    }
+
+    /**
+     * @return the block if cached, without loading or counting a miss.
+     */
+    byte[] getIfPresent(String name, long fileId, int index) {
+        return cache.asMap().get(new BlockKey(name, fileId, index));
+    }
+
+    /**
+     * Drops all blocks of a file.
+     *
+     * @param name file name.
+     */
+    public void invalidate(String name) {
+        Set<BlockKey> keys = keysByName.get(name);
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * Drops all blocks of files whose name starts with the given prefix.
+     *
+     * @param prefix name prefix, such as a directory name.
+     */
+    public void invalidatePrefix(String prefix) {
+        for (String name : keysByName.keySet()) {
+            if (name.startsWith(prefix)) {
+                invalidate(name);
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private void index(BlockKey key) {
+        keysByName.compute(key.name, (name, keys) -> {
+            Set<BlockKey> indexed = keys != null ? keys : ConcurrentHashMap.newKeySet();
+            indexed.add(key);
+            return indexed;
+        });
+    }
+
+    private void unindex(BlockKey key) {
+        keysByName.computeIfPresent(key.name, (name, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * @return hit, miss, load and eviction statistics.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return sizeInBytes.get();
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(size=" + sizeInBytes.get() + ", maxSize=" + maxSizeInBytes
+                + ", " + cache.stats() + ")";
+    }
+
+    private static final class BlockKey {
+        private final String name;
+        private final long fileId;
+        private final int index;
+
+        BlockKey(String name, long fileId, int index) {
+            this.name = name;
+            this.fileId = fileId;
+            this.index = index;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = name.hashCode();
+            h = 31 * h + (int) (fileId ^ (fileId >>> 32));
+            return 31 * h + index;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof BlockKey)) return false;
+            BlockKey other = (BlockKey) obj;
+            return index == other.index && fileId == other.fileId && name.equals(other.name);
+        }
+    }
+}
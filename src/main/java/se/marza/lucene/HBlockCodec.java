@@ -0,0 +1,160 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Compression applied to single blocks before they are stored in the cluster.
+ * <p>
+ * The codec of a file is recorded in its {@link HFileHeader} by id, so custom codecs
+ * must be {@link #register(HBlockCodec) registered} on every member before use.
+ *
+ * @author Marza
+ */
+public abstract class HBlockCodec {
+    private static final ConcurrentMap<Integer, HBlockCodec> CODECS = new ConcurrentHashMap<>();
+
+    /**
+     * Stores blocks as they are.
+     */
+    public static final HBlockCodec NONE = register(new HBlockCodec(0, "none") {
+        @Override
+        public byte[] compress(byte[] block, int length) {
+            return length == block.length ? block : Arrays.copyOf(block, length);
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed, int length) {
+            return length == compressed.length ? compressed : Arrays.copyOf(compressed, length);
+        }
+    });
+
+    /**
+     * Fast LZ4 compression.
+     */
+    public static final HBlockCodec LZ4 = register(new LuceneCodec(1, "lz4", CompressionMode.FAST));
+
+    /**
+     * Slower Deflate compression with better ratios.
+     */
+    public static final HBlockCodec DEFLATE = register(new LuceneCodec(2, "deflate", CompressionMode.HIGH_COMPRESSION));
+
+    private final int id;
+    private final String name;
+
+    protected HBlockCodec(int id, String name) {
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("codec id must be in [0, 255]: " + id);
+        }
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * Makes a codec known to this JVM.
+     *
+     * @param codec codec with an id that is not taken.
+     * @return the codec.
+     */
+    public static HBlockCodec register(HBlockCodec codec) {
+        HBlockCodec existing = CODECS.putIfAbsent(codec.getId(), codec);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("codec id " + codec.getId() + " already used by " + existing);
+        }
+        return codec;
+    }
+
+    /**
+     * @param id id of a registered codec.
+     * @return the codec.
+     * @throws IOException if no such codec is registered.
+     */
+    public static HBlockCodec forId(int id) throws IOException {
+        HBlockCodec codec = CODECS.get(id);
+        if (codec == null) {
+            throw new IOException("unknown block codec id " + id);
+        }
+        return codec;
+    }
+
+    public final int getId() {
+        return id;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    /**
+     * Compresses a block. Not called concurrently on the same output stream, but codecs are shared
+     * between streams and must be thread safe.
+     *
+     * @param block  block to compress.
+     * @param length number of bytes used in the block.
+     * @return compressed bytes, never modified by the caller.
+     * @throws IOException if the block can not be compressed.
+     */
+    public abstract byte[] compress(byte[] block, int length) throws IOException;
+
+    /**
+     * @param compressed bytes returned by {@link #compress(byte[], int)}.
+     * @param length     number of bytes that were compressed.
+     * @return array of exactly {@code length} bytes.
+     * @throws IOException if the bytes are corrupt.
+     */
+    public abstract byte[] decompress(byte[] compressed, int length) throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Codec backed by a Lucene stored fields {@link CompressionMode}.
+     */
+    private static final class LuceneCodec extends HBlockCodec {
+        private final ThreadLocal<Compressor> compressors;
+        private final ThreadLocal<Decompressor> decompressors;
+
+        LuceneCodec(int id, String name, CompressionMode mode) {
+            super(id, name);
+            this.compressors = ThreadLocal.withInitial(mode::newCompressor);
+            this.decompressors = ThreadLocal.withInitial(mode::newDecompressor);
+        }
+
+        @Override
+        public byte[] compress(byte[] block, int length) throws IOException {
+            byte[] compressed = new byte[maxCompressedLength(length)];
+            ByteArrayDataOutput out = new ByteArrayDataOutput(compressed);
+            compressors.get().compress(block, 0, length, out);
+            return Arrays.copyOf(compressed, out.getPosition());
+        }
+
+        @Override
+        public byte[] decompress(byte[] compressed, int length) throws IOException {
+            BytesRef bytes = new BytesRef();
+            decompressors.get().decompress(new ByteArrayDataInput(compressed), length, 0, length, bytes);
+            if (bytes.offset == 0 && bytes.bytes.length == length) {
+                return bytes.bytes;
+            }
+            return Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + length);
+        }
+
+        /**
+         * Worst case of LZ4, one extra byte per 255 literals plus a token and the last sequence, and of
+         * Deflate, 5 bytes per stored block of up to 64KB, on incompressible input, plus a length prefix.
+         */
+        static int maxCompressedLength(int length) {
+            return length + length / 255 + 32;
+        }
+    }
+}
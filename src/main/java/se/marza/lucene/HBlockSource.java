@@ -0,0 +1,45 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+/**
+ * The fixed-size blocks backing a file, as read by {@link HInputStream}.
+ *
+ * @author Marza
+ */
+interface HBlockSource {
+
+    /**
+     * @return size of every block but the last one.
+     */
+    int blockSize();
+
+    /**
+     * @return number of blocks currently available.
+     */
+    int numBlocks();
+
+    /**
+     * @param index index of the block, {@code 0 <= index < numBlocks()}.
+     * @return the block, never modified by the caller.
+     * @throws IOException if the block can not be fetched.
+     */
+    byte[] block(int index) throws IOException;
+
+    /**
+     * @return true if {@link #block(int)} returns blocks already on the heap, that readers can keep
+     * without copying or fetching them.
+     */
+    default boolean isHeapResident() {
+        return false;
+    }
+
+    /**
+     * Hints that blocks are about to be read, so that they can be fetched in the background.
+     *
+     * @param index index of the first block.
+     * @param count number of blocks.
+     */
+    default void readAhead(int index, int count) {
+    }
+}
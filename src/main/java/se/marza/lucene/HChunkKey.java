@@ -0,0 +1,91 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+import com.hazelcast.core.PartitionAware;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Key of a single chunk of a file stored in {@link HazelcastDirectory.StorageMode#CHUNKED} mode.
+ * Chunks belong to the stored contents, see {@link HFileHeader#getFileId()}, not to a file name,
+ * so they are shared by every file with the same contents and survive renames.
+ * <p>
+ * All chunks of the files of a Lucene segment share a partition, see {@link HFileKey}, and
+ * {@link HFileHeader#getPartitionKey()} tells readers which one.
+ *
+ * @author Marza
+ */
+public final class HChunkKey implements PartitionAware<String>, IdentifiedDataSerializable {
+
+    private long fileId;
+    private int index;
+    private String partitionKey;
+
+    public HChunkKey() {
+    }
+
+    public HChunkKey(long fileId, int index, String partitionKey) {
+        this.fileId = fileId;
+        this.index = index;
+        this.partitionKey = partitionKey;
+    }
+
+    public long getFileId() {
+        return fileId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(fileId=" + fileId + ", index=" + index
+                + ", partitionKey=" + partitionKey + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(fileId) + index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        HChunkKey other = (HChunkKey) obj;
+        return index == other.index && fileId == other.fileId && partitionKey.equals(other.partitionKey);
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(fileId);
+        out.writeInt(index);
+        out.writeUTF(partitionKey);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        fileId = in.readLong();
+        index = in.readInt();
+        partitionKey = in.readUTF();
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.CHUNK_KEY_TYPE;
+    }
+}
@@ -0,0 +1,181 @@
+package se.marza.lucene;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.ICompletableFuture;
+
+/**
+ * Read view of a file stored in {@link HazelcastDirectory.StorageMode#CHUNKED} mode.
+ * Chunks are fetched from the cluster one at a time, only when a reader touches them,
+ * and decompressed, going through the member-local {@link HBlockCache} when there is one.
+ * Chunks that sequential readers are about to reach are fetched asynchronously ahead of them,
+ * straight into the cache, so nothing is held for readers that never get there.
+ *
+ * @author Marza
+ */
+final class HChunkedFile implements HBlockSource {
+
+    private final String name;
+    private final HFileHeader header;
+    private final HazelcastDirectory directory;
+    private final HBlockCodec codec;
+    private final HBlockCache cache;
+    private final HCompressionStats compressionStats;
+    // chunks being read ahead, each removes itself when its read completes
+    private final ConcurrentMap<Integer, Future<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    HChunkedFile(String name, HFileHeader header, HazelcastDirectory directory) throws IOException {
+        this.name = name;
+        this.header = header;
+        this.directory = directory;
+        this.codec = HBlockCodec.forId(header.getCodecId());
+        this.cache = directory.getBlockCache();
+        this.compressionStats = directory.compressionStats;
+    }
+
+    HFileHeader header() {
+        return header;
+    }
+
+    @Override
+    public int blockSize() {
+        return header.getChunkSize();
+    }
+
+    @Override
+    public int numBlocks() {
+        return header.numChunks();
+    }
+
+    @Override
+    public byte[] block(int index) throws IOException {
+        if (cache != null) {
+            return cache.get(directory.cacheName(name), header.getFileId(), index, () -> fetch(index));
+        }
+        return fetch(index);
+    }
+
+    /**
+     * Fetches chunks into the cache asynchronously. Without a cache there is nowhere to keep them, so nothing is read ahead.
+     */
+    @Override
+    public void readAhead(int index, int count) {
+        if (cache == null) {
+            return;
+        }
+        String cacheName = directory.cacheName(name);
+        int end = Math.min(numBlocks(), index + count);
+        for (int i = index; i < end; i++) {
+            if (inFlight.containsKey(i) || cache.getIfPresent(cacheName, header.getFileId(), i) != null) {
+                continue;
+            }
+            int chunk = i;
+            long start = System.nanoTime();
+            // members and clients both return completable futures, IMap only promises a Future in 3.x
+            ICompletableFuture<byte[]> future =
+                    (ICompletableFuture<byte[]>) directory.chunkMap.getAsync(header.chunkKey(chunk));
+            if (inFlight.putIfAbsent(chunk, future) != null) {
+                continue;
+            }
+            directory.metrics.readAhead();
+            future.andThen(new ExecutionCallback<byte[]>() {
+                @Override
+                public void onResponse(byte[] response) {
+                    try {
+                        directory.metrics.fetched(start, response == null ? 0 : response.length);
+                        if (cache.getIfPresent(cacheName, header.getFileId(), chunk) == null) {
+                            cache.put(cacheName, header.getFileId(), chunk, decode(chunk, response));
+                        }
+                    } catch (IOException e) {
+                        // a reader reaching the chunk fetches it again and reports the failure
+                    } finally {
+                        inFlight.remove(chunk);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    inFlight.remove(chunk);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads all chunks that are not cached yet into the cache, fetching them in batches.
+     *
+     * @param batchSizeInBytes approximate number of bytes to fetch per round trip.
+     * @throws IOException if a chunk can not be fetched.
+     */
+    void prefetch(long batchSizeInBytes) throws IOException {
+        if (cache == null) {
+            return;
+        }
+        String cacheName = directory.cacheName(name);
+        int batchSize = (int) Math.max(1, batchSizeInBytes / header.getChunkSize());
+        Set<HChunkKey> keys = new HashSet<>();
+        for (int i = 0; i < numBlocks(); i++) {
+            if (cache.getIfPresent(cacheName, header.getFileId(), i) == null) {
+                keys.add(header.chunkKey(i));
+            }
+            if (keys.size() == batchSize || (i == numBlocks() - 1 && !keys.isEmpty())) {
+                long start = System.nanoTime();
+                Map<HChunkKey, byte[]> chunks = directory.chunkMap.getAll(keys);
+                long bytes = 0;
+                for (byte[] chunk : chunks.values()) {
+                    bytes += chunk.length;
+                }
+                directory.metrics.fetched(start, bytes);
+                for (Map.Entry<HChunkKey, byte[]> entry : chunks.entrySet()) {
+                    int index = entry.getKey().getIndex();
+                    cache.put(cacheName, header.getFileId(), index, decode(index, entry.getValue()));
+                }
+                keys.clear();
+            }
+        }
+    }
+
+    private byte[] fetch(int index) throws IOException {
+        long start = System.nanoTime();
+        Future<byte[]> pending = inFlight.get(index);
+        byte[] chunk = pending != null ? await(index, pending)
+                : directory.chunkMap.get(header.chunkKey(index));
+        directory.metrics.fetched(start, chunk == null ? 0 : chunk.length);
+        return decode(index, chunk);
+    }
+
+    private byte[] await(int index, Future<byte[]> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading chunk " + index + " of " + name);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to read chunk " + index + " of " + name, e.getCause());
+        }
+    }
+
+    private byte[] decode(int index, byte[] chunk) throws IOException {
+        if (chunk == null) {
+            // chunks are only deleted with their file
+            throw new FileNotFoundException("missing chunk " + index + " of " + name);
+        }
+        int length = header.chunkLength(index);
+        if (chunk.length < length) {
+            long start = System.nanoTime();
+            chunk = codec.decompress(chunk, length);
+            compressionStats.decompressed(System.nanoTime() - start);
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,136 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.util.Accountable;
+
+/**
+ * {@link HOutputStream} for {@link HazelcastDirectory.StorageMode#CHUNKED} mode.
+ * Every completed buffer is compressed with the file's {@link HBlockCodec} and sent to the
+ * cluster exactly once with an asynchronous put, overlapping with further writes.
+ * <p>
+ * Outputs copying a file whose digest is known, see {@link HazelcastDirectory#copyFrom}, register
+ * the written chunks as {@link HContentRef} on {@link #close()}. If the same contents were stored
+ * by another copy in the meantime, the new chunks are dropped and the header refers to the stored ones.
+ *
+ * @author Marza
+ */
+final class HChunkedOutputStream extends HOutputStream {
+    static final int MAX_PENDING_CHUNKS = 16;
+
+    private final String name;
+    private final HFileHeader header;
+    private final HBlockCodec codec;
+    private final HFile file;
+    private final HazelcastDirectory directory;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final String contentKey;
+    private byte[] current;
+    private int currentIndex = -1;
+    private long sentBytes;
+
+    /**
+     * @param contentKey key of the contents being copied, {@code null} if they are not known in advance.
+     */
+    HChunkedOutputStream(String name, HFileHeader header, HazelcastDirectory directory, String contentKey)
+            throws IOException {
+        this(name, header, new HFile(null, header.getChunkSize()), directory, contentKey);
+    }
+
+    private HChunkedOutputStream(String name, HFileHeader header, HFile file, HazelcastDirectory directory,
+                                 String contentKey) throws IOException {
+        // file only tracks the length, the buffers are handed off to the cluster
+        super(name, file);
+        this.name = name;
+        this.header = header;
+        this.codec = HBlockCodec.forId(header.getCodecId());
+        this.file = file;
+        this.directory = directory;
+        this.contentKey = contentKey;
+    }
+
+    @Override
+    protected byte[] nextBuffer(int index) throws IOException {
+        if (current != null) {
+            sendChunk(currentIndex, current, current.length);
+        }
+        current = new byte[blockSize];
+        currentIndex = index;
+        return current;
+    }
+
+    @Override
+    protected void publish() throws IOException {
+        long start = System.nanoTime();
+        long length = file.getLength();
+        if (current != null) {
+            sendChunk(currentIndex, current, (int) (length - (long) currentIndex * blockSize));
+            current = null;
+        }
+        while (!pending.isEmpty()) {
+            await(pending.poll());
+        }
+        HFileHeader written = header.withContents(length, getChecksum());
+        if (contentKey != null) {
+            HContentRef stored = (HContentRef) directory.contentMap.executeOnKey(contentKey,
+                    new HRefProcessor(written, 1));
+            if (stored != null) {
+                // the chunks sent are dropped, so the file holds no bytes of this instance
+                directory.deleteChunks(written);
+                sentBytes = 0;
+                written = written.withContentKey(contentKey, stored);
+            } else {
+                written = written.withContentKey(contentKey, new HContentRef(written, 1));
+            }
+        }
+        directory.headerMap.set(name, written);
+        directory.account(written, sentBytes);
+        directory.metrics.record(HMetrics.Op.PUBLISH, start);
+        directory.metrics.written(length);
+    }
+
+    private void sendChunk(int index, byte[] chunk, int length) throws IOException {
+        byte[] stored = HBlockCodec.NONE.compress(chunk, length);
+        if (codec != HBlockCodec.NONE) {
+            long start = System.nanoTime();
+            byte[] compressed = codec.compress(chunk, length);
+            // chunks that do not shrink are stored as is, readers tell them apart by their length
+            if (compressed.length < length) {
+                stored = compressed;
+            }
+            directory.compressionStats.compressed(length, stored.length, System.nanoTime() - start);
+        }
+        if (pending.size() >= MAX_PENDING_CHUNKS) {
+            await(pending.poll());
+        }
+        pending.add(directory.chunkMap.putAsync(header.chunkKey(index), stored));
+        sentBytes += blockSize;
+    }
+
+    private void await(Future<byte[]> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing " + name);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to write chunk of " + name, e.getCause());
+        }
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return current == null ? 0 : current.length;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+}
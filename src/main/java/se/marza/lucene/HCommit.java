@@ -0,0 +1,84 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * A commit point of a {@link HazelcastDirectory}, published to its commit topic when a
+ * {@code segments_N} file is put in place.
+ *
+ * @author Marza
+ */
+public final class HCommit implements IdentifiedDataSerializable {
+
+    private long generation;
+    private String segmentsFileName;
+    private Collection<String> files;
+
+    public HCommit() {
+    }
+
+    public HCommit(long generation, String segmentsFileName, Collection<String> files) {
+        this.generation = generation;
+        this.segmentsFileName = segmentsFileName;
+        this.files = files;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getSegmentsFileName() {
+        return segmentsFileName;
+    }
+
+    /**
+     * @return all files referenced by the commit, including the segments file.
+     */
+    public Collection<String> getFiles() {
+        return Collections.unmodifiableCollection(files);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(generation=" + generation + ", segmentsFileName=" + segmentsFileName
+                + ", files=" + files.size() + ")";
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(generation);
+        out.writeUTF(segmentsFileName);
+        out.writeInt(files.size());
+        for (String file : files) {
+            out.writeUTF(file);
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        generation = in.readLong();
+        segmentsFileName = in.readUTF();
+        int size = in.readInt();
+        files = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            files.add(in.readUTF());
+        }
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.COMMIT_TYPE;
+    }
+}
@@ -0,0 +1,76 @@
+package se.marza.lucene;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compression ratio and CPU time of the {@link HBlockCodec}s used by a {@link HazelcastDirectory}.
+ *
+ * @author Marza
+ */
+public final class HCompressionStats {
+
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder compressedBlocks = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedBlocks = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    void compressed(int uncompressed, int stored, long nanos) {
+        uncompressedBytes.add(uncompressed);
+        storedBytes.add(stored);
+        compressedBlocks.increment();
+        compressNanos.add(nanos);
+    }
+
+    void decompressed(long nanos) {
+        decompressedBlocks.increment();
+        decompressNanos.add(nanos);
+    }
+
+    /**
+     * @return bytes handed to codecs.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    /**
+     * @return bytes stored in the cluster for those blocks, blocks that did not shrink are stored as is.
+     */
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    /**
+     * @return stored bytes per uncompressed byte, 1 when nothing was compressed.
+     */
+    public double getRatio() {
+        long uncompressed = getUncompressedBytes();
+        return uncompressed == 0 ? 1d : (double) getStoredBytes() / uncompressed;
+    }
+
+    public long getCompressedBlocks() {
+        return compressedBlocks.sum();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    public long getDecompressedBlocks() {
+        return decompressedBlocks.sum();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(uncompressed=" + getUncompressedBytes() + ", stored=" + getStoredBytes()
+                + ", ratio=" + String.format("%.3f", getRatio())
+                + ", compressed=" + getCompressedBlocks() + " in " + getCompressNanos() / 1000000 + "ms"
+                + ", decompressed=" + getDecompressedBlocks() + " in " + getDecompressNanos() / 1000000 + "ms)";
+    }
+}
@@ -0,0 +1,119 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Stored contents shared by files of {@link HazelcastDirectory} indexes in
+ * {@link HazelcastDirectory.StorageMode#CHUNKED} mode, keyed by {@link HFileHeader#getContentKey()}.
+ * Indexes on the same cluster share their chunks, so the files may belong to different indexes.
+ *
+ * @author Marza
+ */
+public final class HContentRef implements IdentifiedDataSerializable {
+
+    private long fileId;
+    private String partitionKey;
+    private int chunkSize;
+    private int codecId;
+    private int refs;
+
+    public HContentRef() {
+    }
+
+    public HContentRef(long fileId, String partitionKey, int chunkSize, int codecId, int refs) {
+        this.fileId = fileId;
+        this.partitionKey = partitionKey;
+        this.chunkSize = chunkSize;
+        this.codecId = codecId;
+        this.refs = refs;
+    }
+
+    /**
+     * @param header header of a file whose chunks hold the contents.
+     * @param refs   number of files with these contents.
+     */
+    public HContentRef(HFileHeader header, int refs) {
+        this(header.getFileId(), header.getPartitionKey(), header.getChunkSize(), header.getCodecId(), refs);
+    }
+
+    /**
+     * @return id of the chunks holding the contents.
+     */
+    public long getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return partition key of the chunks, see {@link HChunkKey#getPartitionKey()}.
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @return size of the chunks, which files sharing the contents are read with.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return id of the {@link HBlockCodec} the chunks are compressed with.
+     */
+    public int getCodecId() {
+        return codecId;
+    }
+
+    /**
+     * @return number of files with these contents, 0 once the last one is gone.
+     */
+    public int getRefs() {
+        return refs;
+    }
+
+    /**
+     * @param refs number of files with these contents.
+     * @return copy of this reference with the given number of files.
+     */
+    public HContentRef withRefs(int refs) {
+        return new HContentRef(fileId, partitionKey, chunkSize, codecId, refs);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(fileId=" + fileId + ", partitionKey=" + partitionKey
+                + ", chunkSize=" + chunkSize + ", codecId=" + codecId + ", refs=" + refs + ")";
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(fileId);
+        out.writeUTF(partitionKey);
+        out.writeInt(chunkSize);
+        out.writeByte(codecId);
+        out.writeInt(refs);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        fileId = in.readLong();
+        partitionKey = in.readUTF();
+        chunkSize = in.readInt();
+        codecId = in.readUnsignedByte();
+        refs = in.readInt();
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.CONTENT_REF_TYPE;
+    }
+}
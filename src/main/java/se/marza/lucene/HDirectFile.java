@@ -0,0 +1,220 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+
+/**
+ * {@link HFile} keeping its blocks in direct {@link ByteBuffer} slabs outside the Java heap.
+ * Written by {@link HDirectOutputStream} and read by {@link HDirectInputStream}.
+ * <p>
+ * {@link #newBuffer(int)} can only hand out heap arrays, so slabs are allocated by {@link #newSlab(int)}.
+ * Deserialized copies also allocate their slabs off heap, so index bytes fetched from the cluster
+ * only pass through the heap in their serialized form.
+ *
+ * @author Marza
+ */
+public class HDirectFile extends HFile {
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    protected ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    // set once the file is complete, read without locking from then on
+    private volatile ByteBuffer[] sealedSlabs;
+
+    // File used as buffer, in no HazelcastDirectory
+    public HDirectFile() {
+    }
+
+    public HDirectFile(HazelcastDirectory directory, int blockSize) {
+        super(directory, blockSize);
+    }
+
+    protected final ByteBuffer addSlab() {
+        ByteBuffer slab = newSlab(blockSize);
+        synchronized (this) {
+            ensureNotSealed();
+            slabs.add(slab);
+            sizeInBytes += blockSize;
+        }
+        return slab;
+    }
+
+    /**
+     * @param index index of the slab.
+     * @return the slab, callers must {@link ByteBuffer#duplicate()} it before changing its position.
+     */
+    protected final ByteBuffer getSlab(int index) {
+        ByteBuffer[] sealed = sealedSlabs;
+        if (sealed != null) {
+            return sealed[index];
+        }
+        synchronized (this) {
+            return slabs.get(index);
+        }
+    }
+
+    protected final int numSlabs() {
+        ByteBuffer[] sealed = sealedSlabs;
+        if (sealed != null) {
+            return sealed.length;
+        }
+        synchronized (this) {
+            return slabs.size();
+        }
+    }
+
+    @Override
+    protected synchronized void seal() {
+        if (sealedSlabs == null) {
+            sealedSlabs = slabs.toArray(new ByteBuffer[slabs.size()]);
+        }
+        super.seal();
+    }
+
+    /**
+     * Expert: allocate a new slab.
+     * Subclasses can allocate differently, for example from a pool.
+     *
+     * @param size size of allocated slab.
+     * @return allocated slab.
+     */
+    protected ByteBuffer newSlab(int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public int numBlocks() {
+        return numSlabs();
+    }
+
+    /**
+     * Copies a slab to the heap, for readers that only understand heap blocks.
+     * {@link HDirectInputStream} reads the slabs directly.
+     */
+    @Override
+    public byte[] block(int index) {
+        ByteBuffer slab = getSlab(index).duplicate();
+        slab.clear();
+        byte[] block = new byte[slab.remaining()];
+        slab.get(block);
+        return block;
+    }
+
+    @Override
+    public boolean isHeapResident() {
+        return false;
+    }
+
+    /**
+     * Hashes the contents slab by slab, equal to the hash of an {@link HFile} with the same contents.
+     */
+    @Override
+    public int hashCode() {
+        int h = (int) (length ^ (length >>> 32));
+        long remaining = length;
+        for (int i = 0; remaining > 0; i++) {
+            ByteBuffer slab = window(i, remaining);
+            remaining -= slab.remaining();
+            while (slab.hasRemaining()) {
+                h = 31 * h + slab.get();
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Files are equal when they have the same contents, regardless of how they are split into slabs.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        HDirectFile other = (HDirectFile) obj;
+        if (length != other.length) return false;
+        ByteBuffer a = null;
+        ByteBuffer b = null;
+        int i = 0;
+        int j = 0;
+        for (long pos = 0; pos < length; ) {
+            if (a == null || !a.hasRemaining()) {
+                a = window(i++, length - pos);
+            }
+            if (b == null || !b.hasRemaining()) {
+                b = other.window(j++, length - pos);
+            }
+            int n = Math.min(a.remaining(), b.remaining());
+            ByteBuffer x = a.duplicate();
+            ByteBuffer y = b.duplicate();
+            x.limit(x.position() + n);
+            y.limit(y.position() + n);
+            if (!x.equals(y)) {
+                return false;
+            }
+            a.position(a.position() + n);
+            b.position(b.position() + n);
+            pos += n;
+        }
+        return true;
+    }
+
+    // the used part of a slab, at most remaining bytes
+    private ByteBuffer window(int index, long remaining) {
+        ByteBuffer slab = getSlab(index).duplicate();
+        slab.clear();
+        slab.limit((int) Math.min(slab.capacity(), remaining));
+        return slab;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(length);
+        byte[] transfer = new byte[Math.min(blockSize, TRANSFER_SIZE)];
+        long remaining = length;
+        for (int i = 0; remaining > 0; i++) {
+            ByteBuffer slab = getSlab(i).duplicate();
+            slab.clear();
+            slab.limit((int) Math.min(blockSize, remaining));
+            remaining -= slab.remaining();
+            while (slab.hasRemaining()) {
+                int n = Math.min(transfer.length, slab.remaining());
+                slab.get(transfer, 0, n);
+                out.write(transfer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Reads the contents into as few off-heap regions as possible, a single one for files up to
+     * {@link #MAX_CONTIGUOUS_BLOCK_SIZE} bytes.
+     */
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        length = in.readLong();
+        blockSize = contiguousBlockSize(length);
+        slabs = new ArrayList<>();
+        sizeInBytes = 0;
+        byte[] transfer = new byte[Math.min(blockSize, TRANSFER_SIZE)];
+        long remaining = length;
+        while (remaining > 0) {
+            ByteBuffer slab = newSlab((int) Math.min(blockSize, remaining));
+            slabs.add(slab);
+            sizeInBytes += slab.capacity();
+            remaining -= slab.remaining();
+            while (slab.hasRemaining()) {
+                int n = Math.min(transfer.length, slab.remaining());
+                in.readFully(transfer, 0, n);
+                slab.put(transfer, 0, n);
+            }
+        }
+        seal();
+    }
+
+    @Override
+    public int getId() {
+        return HazelcastDataSerializableFactory.HDIRECT_FILE_TYPE;
+    }
+}
@@ -0,0 +1,260 @@
+package se.marza.lucene;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+
+/**
+ * {@link IndexInput} reading the off-heap slabs of a {@link HDirectFile} without copying them to the heap.
+ *
+ * @author Marza
+ */
+public class HDirectInputStream extends IndexInput implements Cloneable {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final HDirectFile file;
+    private final long length;
+    private final int blockSize;
+    private final HMetrics metrics;
+
+    private ByteBuffer currentSlab;
+    private int currentSlabIndex;
+    private long bufferStart;
+
+    public HDirectInputStream(HDirectFile file, String name) throws IOException {
+        this(name, file, file.getLength(), null);
+    }
+
+    /**
+     * @param metrics metrics of the directory the file was opened from, may be null.
+     */
+    HDirectInputStream(String name, HDirectFile file, long length, HMetrics metrics) throws IOException {
+        super("HDirectInputStream(name=" + name + ")");
+        this.file = file;
+        this.length = length;
+        this.blockSize = file.blockSize();
+        this.metrics = metrics;
+        if (length / blockSize >= Integer.MAX_VALUE) {
+            throw new IOException("HDirectInputStream too large length=" + length + ": " + name);
+        }
+
+        // make sure that we switch to the
+        // first needed slab lazily
+        currentSlabIndex = -1;
+        currentSlab = EMPTY;
+    }
+
+    @Override
+    public void close() {
+        // nothing to do here
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        if (!currentSlab.hasRemaining()) {
+            switchCurrentSlab(currentSlabIndex + 1);
+        }
+        return currentSlab.get();
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException {
+        while (len > 0) {
+            if (!currentSlab.hasRemaining()) {
+                switchCurrentSlab(currentSlabIndex + 1);
+            }
+
+            int bytesToCopy = Math.min(len, currentSlab.remaining());
+            currentSlab.get(b, offset, bytesToCopy);
+            offset += bytesToCopy;
+            len -= bytesToCopy;
+        }
+    }
+
+    private void switchCurrentSlab(int index) throws IOException {
+        long start = (long) blockSize * (long) index;
+        if (index >= file.numSlabs() || start >= length) {
+            throw new EOFException("read past EOF: " + this);
+        }
+        ByteBuffer slab = file.getSlab(index).duplicate();
+        slab.clear();
+        slab.limit((int) Math.min(blockSize, length - start));
+        currentSlab = slab;
+        currentSlabIndex = index;
+        bufferStart = start;
+        if (metrics != null) {
+            metrics.blockRead(slab.limit());
+        }
+    }
+
+    @Override
+    public long getFilePointer() {
+        return currentSlabIndex < 0 ? 0 : bufferStart + currentSlab.position();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > length) {
+            throw new EOFException("seek to " + pos + " outside of file: " + this);
+        }
+        int index = (int) (pos / blockSize);
+        int offset = (int) (pos % blockSize);
+        if (offset == 0 && index > 0 && pos == length) {
+            // stay at the end of the last slab so that the next read hits EOF
+            index--;
+            offset = blockSize;
+        }
+        if (pos == 0 && length == 0) {
+            currentSlabIndex = -1;
+            currentSlab = EMPTY;
+            return;
+        }
+        if (index != currentSlabIndex) {
+            switchCurrentSlab(index);
+        }
+        currentSlab.position(offset);
+    }
+
+    @Override
+    public HDirectInputStream clone() {
+        HDirectInputStream clone = (HDirectInputStream) super.clone();
+        clone.currentSlab = currentSlab.duplicate();
+        return clone;
+    }
+
+    @Override
+    public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+        }
+        return new HDirectInputStream(getFullSliceDescription(sliceDescription), file, offset + length, metrics) {
+            {
+                seek(0L);
+            }
+
+            @Override
+            public void seek(long pos) throws IOException {
+                if (pos < 0L) {
+                    throw new IllegalArgumentException("Seeking to negative position: " + this);
+                }
+                super.seek(pos + offset);
+            }
+
+            @Override
+            public long getFilePointer() {
+                return super.getFilePointer() - offset;
+            }
+
+            @Override
+            public long length() {
+                return super.length() - offset;
+            }
+
+            @Override
+            public IndexInput slice(String sliceDescription, long ofs, long len) throws IOException {
+                return super.slice(sliceDescription, offset + ofs, len);
+            }
+
+            @Override
+            public RandomAccessInput randomAccessSlice(long ofs, long len) throws IOException {
+                return super.randomAccessSlice(offset + ofs, len);
+            }
+        };
+    }
+
+    /**
+     * Returns positional access with absolute reads on the slabs. It shares no state with this
+     * input and can be used by many threads.
+     */
+    @Override
+    public RandomAccessInput randomAccessSlice(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("randomAccessSlice() out of bounds: offset=" + offset
+                    + ", length=" + length + ": " + this);
+        }
+        return new SlabRandomAccessInput(file, offset, length);
+    }
+
+    private static final class SlabRandomAccessInput implements RandomAccessInput {
+        private final ByteBuffer[] slabs;
+        private final long offset;
+        private final long length;
+        private final int blockSize;
+
+        SlabRandomAccessInput(HDirectFile file, long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+            this.blockSize = file.blockSize();
+            this.slabs = new ByteBuffer[file.numSlabs()];
+            for (int i = 0; i < slabs.length; i++) {
+                // absolute reads do not touch position or limit, so the duplicates can be shared
+                slabs[i] = file.getSlab(i).duplicate();
+                slabs[i].clear();
+            }
+        }
+
+        private long position(long pos, int size) throws EOFException {
+            if (pos < 0 || pos > length - size) {
+                throw new EOFException("read of " + size + " bytes at " + pos + " past EOF, length=" + length);
+            }
+            return offset + pos;
+        }
+
+        @Override
+        public byte readByte(long pos) throws IOException {
+            long position = position(pos, Byte.BYTES);
+            return slabs[(int) (position / blockSize)].get((int) (position % blockSize));
+        }
+
+        @Override
+        public short readShort(long pos) throws IOException {
+            long position = position(pos, Short.BYTES);
+            int slabOffset = (int) (position % blockSize);
+            if (slabOffset + Short.BYTES <= blockSize) {
+                return slabs[(int) (position / blockSize)].getShort(slabOffset);
+            }
+            return (short) readSpanning(position, Short.BYTES);
+        }
+
+        @Override
+        public int readInt(long pos) throws IOException {
+            long position = position(pos, Integer.BYTES);
+            int slabOffset = (int) (position % blockSize);
+            if (slabOffset + Integer.BYTES <= blockSize) {
+                return slabs[(int) (position / blockSize)].getInt(slabOffset);
+            }
+            return (int) readSpanning(position, Integer.BYTES);
+        }
+
+        @Override
+        public long readLong(long pos) throws IOException {
+            long position = position(pos, Long.BYTES);
+            int slabOffset = (int) (position % blockSize);
+            if (slabOffset + Long.BYTES <= blockSize) {
+                return slabs[(int) (position / blockSize)].getLong(slabOffset);
+            }
+            return readSpanning(position, Long.BYTES);
+        }
+
+        private long readSpanning(long position, int size) {
+            long value = 0;
+            for (int i = 0; i < size; i++, position++) {
+                value = (value << 8) | (slabs[(int) (position / blockSize)].get((int) (position % blockSize)) & 0xFF);
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "SlabRandomAccessInput(offset=" + offset + ", length=" + length + ")";
+        }
+    }
+}
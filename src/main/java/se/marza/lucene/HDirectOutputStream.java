@@ -0,0 +1,67 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * {@link IndexOutput} writing into the off-heap slabs of a {@link HDirectFile}.
+ * Writes go to a single heap block, which is copied to its slab once it is complete
+ * and on {@link #flush()}.
+ *
+ * @author Marza
+ */
+public class HDirectOutputStream extends HOutputStream {
+
+    private final HDirectFile file;
+    private byte[] current;
+    private int currentIndex = -1;
+
+    public HDirectOutputStream(String name, HDirectFile file) {
+        this(name, file, null);
+    }
+
+    /**
+     * @param header header of the file in its directory, published with the final length and checksum.
+     */
+    HDirectOutputStream(String name, HDirectFile file, HFileHeader header) {
+        super(name, file, header);
+        this.file = file;
+    }
+
+    @Override
+    protected byte[] nextBuffer(int index) throws IOException {
+        if (current == null) {
+            current = new byte[blockSize];
+        } else {
+            copyToSlab(blockSize);
+        }
+        currentIndex = index;
+        return current;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+        long written = file.getLength() - (long) currentIndex * blockSize;
+        if (current != null && written > 0) {
+            copyToSlab((int) written);
+        }
+    }
+
+    private void copyToSlab(int length) {
+        ByteBuffer slab = currentIndex == file.numSlabs() ? file.addSlab() : file.getSlab(currentIndex);
+        slab = slab.duplicate();
+        slab.clear();
+        slab.put(current, 0, length);
+    }
+
+    /**
+     * Returns byte usage of all slabs and the block being written.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return (long) file.numSlabs() * (long) blockSize + (current == null ? 0 : blockSize);
+    }
+}
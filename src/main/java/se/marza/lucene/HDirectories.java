@@ -0,0 +1,175 @@
+package se.marza.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Many named indexes on one shared Hazelcast instance.
+ * <p>
+ * Opening an index only creates proxies of its maps, so it takes milliseconds instead of a cluster join.
+ * Every index has its own file maps, lock and size accounting. The storage mode of every index is recorded in
+ * a cluster-wide registry, so all members open it the same way. Directories opened here share one
+ * {@link HBlockCache}, whose size bounds the memory used for cached chunks however many indexes are open.
+ * Indexes in {@link HazelcastDirectory.StorageMode#CHUNKED} mode keep their chunks in one store, so files
+ * copied between them with {@link HazelcastDirectory#copyFrom}, as by {@code IndexWriter.addIndexes},
+ * are stored once.
+ *
+ * @author Marza
+ */
+public final class HDirectories implements Closeable {
+    private static final String REGISTRY_NAME = "hazelcastDirectory.registry";
+
+    private final HazelcastInstance instance;
+    private final HazelcastDirectory.StorageMode defaultStorageMode;
+    private final IMap<String, String> registry;
+    private final HBlockCache blockCache;
+    private final ConcurrentMap<String, HazelcastDirectory> directories = new ConcurrentHashMap<>();
+
+    public HDirectories(HazelcastInstance instance) {
+        this(instance, HazelcastDirectory.StorageMode.FILE, HazelcastDirectory.DEFAULT_BLOCK_CACHE_SIZE);
+    }
+
+    /**
+     * @param instance           Hazelcast member or client, set up with {@link HazelcastDirectory#configure}.
+     * @param defaultStorageMode storage mode of indexes created by {@link #open(String)}.
+     * @param blockCacheSize     size in bytes of the chunk cache shared by all indexes.
+     */
+    public HDirectories(HazelcastInstance instance, HazelcastDirectory.StorageMode defaultStorageMode,
+                        long blockCacheSize) {
+        if (defaultStorageMode == null) {
+            throw new IllegalArgumentException("defaultStorageMode must not be null");
+        }
+        this.instance = instance;
+        this.defaultStorageMode = defaultStorageMode;
+        this.registry = instance.getMap(REGISTRY_NAME);
+        this.blockCache = new HBlockCache(blockCacheSize);
+    }
+
+    /**
+     * Opens an index, creating it with the default storage mode if it does not exist in the cluster.
+     *
+     * @param name name of the index.
+     * @return directory of the index, the same instance until it is closed.
+     */
+    public HazelcastDirectory open(String name) {
+        return open(name, null);
+    }
+
+    /**
+     * @param name        name of the index.
+     * @param storageMode storage mode of the index, {@code null} for the registered or default one.
+     * @return directory of the index, the same instance until it is closed.
+     * @throws IllegalStateException if the index was created with another storage mode.
+     */
+    public HazelcastDirectory open(String name, HazelcastDirectory.StorageMode storageMode) {
+        HazelcastDirectory directory = directories.get(name);
+        if (directory != null && directory.isOpen()) {
+            checkStorageMode(name, directory.getStorageMode(), storageMode);
+            return directory;
+        }
+        HazelcastDirectory.StorageMode mode = register(name, storageMode);
+        return directories.compute(name, (key, existing) -> {
+            if (existing != null && existing.isOpen()) {
+                return existing;
+            }
+            HazelcastDirectory opened = new HazelcastDirectory(instance, name, mode);
+            if (mode == HazelcastDirectory.StorageMode.CHUNKED) {
+                opened.setBlockCache(blockCache);
+            }
+            return opened;
+        });
+    }
+
+    private HazelcastDirectory.StorageMode register(String name, HazelcastDirectory.StorageMode storageMode) {
+        HazelcastDirectory.StorageMode mode = storageMode != null ? storageMode : defaultStorageMode;
+        String registered = registry.putIfAbsent(name, mode.name());
+        if (registered == null) {
+            return mode;
+        }
+        HazelcastDirectory.StorageMode existing = HazelcastDirectory.StorageMode.valueOf(registered);
+        checkStorageMode(name, existing, storageMode);
+        return existing;
+    }
+
+    private static void checkStorageMode(String name, HazelcastDirectory.StorageMode existing,
+                                         HazelcastDirectory.StorageMode requested) {
+        if (requested != null && requested != existing) {
+            throw new IllegalStateException("index " + name + " is stored as " + existing + ", not " + requested);
+        }
+    }
+
+    /**
+     * @return names of all indexes in the cluster.
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(new TreeSet<>(registry.keySet()));
+    }
+
+    /**
+     * @param name name of an index.
+     * @return whether the index exists in the cluster.
+     */
+    public boolean exists(String name) {
+        return registry.containsKey(name);
+    }
+
+    /**
+     * Removes an index and all its files from the cluster.
+     *
+     * @param name name of the index.
+     * @throws IOException if the index could not be removed.
+     */
+    public void drop(String name) throws IOException {
+        String registered = registry.get(name);
+        if (registered == null) {
+            return;
+        }
+        HazelcastDirectory directory = directories.remove(name);
+        if (directory == null || !directory.isOpen()) {
+            directory = new HazelcastDirectory(instance, name, HazelcastDirectory.StorageMode.valueOf(registered));
+        }
+        directory.destroy();
+        registry.delete(name);
+    }
+
+    /**
+     * @return total length of the files of every open index in the cluster, by index name.
+     */
+    public Map<String, Long> storedBytes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (String name : new TreeSet<>(directories.keySet())) {
+            HazelcastDirectory directory = directories.get(name);
+            if (directory != null && directory.isOpen()) {
+                sizes.put(name, directory.getStoredBytes());
+            }
+        }
+        return sizes;
+    }
+
+    public HBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Closes every directory opened here. The indexes stay in the cluster and the instance keeps running.
+     */
+    @Override
+    public void close() throws IOException {
+        List<HazelcastDirectory> open = new ArrayList<>(directories.values());
+        directories.clear();
+        IOUtils.close(open);
+    }
+}
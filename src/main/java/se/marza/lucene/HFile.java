@@ -2,7 +2,6 @@ package se.marza.lucene;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -15,49 +14,121 @@ import org.apache.lucene.util.Accountable;
 /**
  * @author Marza
  */
-public class HFile implements Accountable, IdentifiedDataSerializable {
+public class HFile implements Accountable, IdentifiedDataSerializable, HBlockSource {
+    /**
+     * Largest block of a deserialized file, larger files are split so they need no huge allocations.
+     */
+    static final int MAX_CONTIGUOUS_BLOCK_SIZE = 4 * 1024 * 1024;
 
     protected ArrayList<byte[]> buffers = new ArrayList<>();
     long length;
+    int blockSize;
     volatile HazelcastDirectory directory;
     protected long sizeInBytes;
+    // set once the file is complete, read without locking from then on
+    private volatile byte[][] sealedBuffers;
 
     // File used as buffer, in no HazelcastDirectory
     public HFile() {
+        this(null);
     }
 
     public HFile(HazelcastDirectory directory) {
+        this(directory, HOutputStream.BUFFER_SIZE);
+    }
+
+    public HFile(HazelcastDirectory directory, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
         this.directory = directory;
+        this.blockSize = blockSize;
     }
 
     // For non-stream access from thread that might be concurrent with writing
-    public synchronized long getLength() {
-        return length;
+    public long getLength() {
+        if (isSealed()) {
+            // written before the file was sealed
+            return length;
+        }
+        synchronized (this) {
+            return length;
+        }
+    }
+
+    @Override
+    public int blockSize() {
+        return blockSize;
     }
 
     protected synchronized void setLength(long length) {
+        ensureNotSealed();
         this.length = length;
     }
 
+    /**
+     * Makes the file immutable. Blocks and length are then read without locking, which matters
+     * when many searcher threads read the same file.
+     */
+    protected synchronized void seal() {
+        if (sealedBuffers == null) {
+            sealedBuffers = buffers.toArray(new byte[buffers.size()][]);
+        }
+    }
+
+    public final boolean isSealed() {
+        return sealedBuffers != null;
+    }
+
+    protected final void ensureNotSealed() {
+        if (isSealed()) {
+            throw new IllegalStateException("file is sealed: " + this);
+        }
+    }
+
     protected final byte[] addBuffer(int size) {
         byte[] buffer = newBuffer(size);
         synchronized (this) {
+            ensureNotSealed();
             buffers.add(buffer);
             sizeInBytes += size;
         }
+        return buffer;
+    }
 
-        if (directory != null) {
-            directory.sizeInBytes.getAndAdd(size);
+    protected final byte[] getBuffer(int index) {
+        byte[][] sealed = sealedBuffers;
+        if (sealed != null) {
+            return sealed[index];
+        }
+        synchronized (this) {
+            return buffers.get(index);
+        }
+    }
+
+    protected final int numBuffers() {
+        byte[][] sealed = sealedBuffers;
+        if (sealed != null) {
+            return sealed.length;
+        }
+        synchronized (this) {
+            return buffers.size();
         }
-        return buffer;
     }
 
-    protected final synchronized byte[] getBuffer(int index) {
-        return buffers.get(index);
+    @Override
+    public int numBlocks() {
+        return numBuffers();
+    }
+
+    @Override
+    public byte[] block(int index) {
+        return getBuffer(index);
     }
 
-    protected final synchronized int numBuffers() {
-        return buffers.size();
+    @Override
+    public boolean isHeapResident() {
+        return true;
     }
 
     /**
@@ -83,18 +154,27 @@ public class HFile implements Accountable, IdentifiedDataSerializable {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "(length=" + length + ")";
+        return getClass().getSimpleName() + "(length=" + length + ", blockSize=" + blockSize + ")";
     }
 
     @Override
     public int hashCode() {
         int h = (int) (length ^ (length >>> 32));
-        for (byte[] block : buffers) {
-            h = 31 * h + Arrays.hashCode(block);
+        long remaining = length;
+        for (int i = 0; remaining > 0; i++) {
+            byte[] block = getBuffer(i);
+            int n = (int) Math.min(block.length, remaining);
+            for (int j = 0; j < n; j++) {
+                h = 31 * h + block[j];
+            }
+            remaining -= n;
         }
         return h;
     }
 
+    /**
+     * Files are equal when they have the same contents, regardless of how they are split into blocks.
+     */
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
@@ -102,29 +182,61 @@ public class HFile implements Accountable, IdentifiedDataSerializable {
         if (getClass() != obj.getClass()) return false;
         HFile other = (HFile) obj;
         if (length != other.length) return false;
-        if (buffers.size() != other.buffers.size()) {
-            return false;
-        }
-        for (int i = 0; i < buffers.size(); i++) {
-            if (!Arrays.equals(buffers.get(i), other.buffers.get(i))) {
-                return false;
+        for (long pos = 0; pos < length; ) {
+            byte[] a = getBuffer((int) (pos / blockSize));
+            byte[] b = other.getBuffer((int) (pos / other.blockSize));
+            int aOffset = (int) (pos % blockSize);
+            int bOffset = (int) (pos % other.blockSize);
+            int n = (int) Math.min(length - pos, Math.min(a.length - aOffset, b.length - bOffset));
+            for (int i = 0; i < n; i++) {
+                if (a[aOffset + i] != b[bOffset + i]) {
+                    return false;
+                }
             }
+            pos += n;
         }
         return true;
     }
 
+    /**
+     * Writes the length followed by the raw file contents.
+     */
     @Override
     public void writeData(ObjectDataOutput out) throws IOException {
         out.writeLong(length);
-        out.writeLong(sizeInBytes);
-        out.writeObject(buffers);
+        long remaining = length;
+        for (int i = 0; remaining > 0; i++) {
+            byte[] block = getBuffer(i);
+            int n = (int) Math.min(block.length, remaining);
+            out.write(block, 0, n);
+            remaining -= n;
+        }
     }
 
+    /**
+     * Reads the contents into as few blocks as possible, a single one for files up to
+     * {@link #MAX_CONTIGUOUS_BLOCK_SIZE} bytes.
+     */
     @Override
     public void readData(ObjectDataInput in) throws IOException {
         length = in.readLong();
-        sizeInBytes = in.readLong();
-        buffers = in.readObject();
+        blockSize = contiguousBlockSize(length);
+        buffers = new ArrayList<>((int) ((length + blockSize - 1) / blockSize));
+        sizeInBytes = 0;
+        long remaining = length;
+        while (remaining > 0) {
+            int n = (int) Math.min(blockSize, remaining);
+            byte[] block = newBuffer(n);
+            in.readFully(block, 0, n);
+            buffers.add(block);
+            sizeInBytes += n;
+            remaining -= n;
+        }
+        seal();
+    }
+
+    static int contiguousBlockSize(long length) {
+        return (int) Math.max(1L, Math.min(length, MAX_CONTIGUOUS_BLOCK_SIZE));
     }
 
     @Override
@@ -141,13 +253,41 @@ public class HFile implements Accountable, IdentifiedDataSerializable {
 
         public static final int FACTORY_ID = 1;
         public static final int HFILE_TYPE = 1;
+        public static final int FILE_HEADER_TYPE = 2;
+        public static final int CHUNK_KEY_TYPE = 3;
+        public static final int HDIRECT_FILE_TYPE = 4;
+        public static final int COMMIT_TYPE = 5;
+        public static final int LOAD_PROCESSOR_TYPE = 6;
+        public static final int CONTENT_REF_TYPE = 7;
+        public static final int REF_PROCESSOR_TYPE = 8;
+        public static final int MERGE_TASK_TYPE = 9;
+        public static final int FILE_KEY_TYPE = 10;
 
         @Override
         public IdentifiedDataSerializable create(int typeId) {
-            if (typeId == HFILE_TYPE) {
-                return new HFile();
-            } else {
-                return null;
+            switch (typeId) {
+                case HFILE_TYPE:
+                    return new HFile();
+                case FILE_HEADER_TYPE:
+                    return new HFileHeader();
+                case CHUNK_KEY_TYPE:
+                    return new HChunkKey();
+                case HDIRECT_FILE_TYPE:
+                    return new HDirectFile();
+                case COMMIT_TYPE:
+                    return new HCommit();
+                case LOAD_PROCESSOR_TYPE:
+                    return new HLoadProcessor();
+                case CONTENT_REF_TYPE:
+                    return new HContentRef();
+                case REF_PROCESSOR_TYPE:
+                    return new HRefProcessor();
+                case MERGE_TASK_TYPE:
+                    return new HMergeTask();
+                case FILE_KEY_TYPE:
+                    return new HFileKey();
+                default:
+                    return null;
             }
         }
     }
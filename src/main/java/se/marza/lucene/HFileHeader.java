@@ -0,0 +1,219 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Metadata of a file in a {@link HazelcastDirectory}, kept apart from the contents so that listing
+ * files and reading their lengths never moves file contents. The contents live in {@link HChunkKey}
+ * entries in {@link HazelcastDirectory.StorageMode#CHUNKED} mode and in a single {@link HFile} in
+ * {@link HazelcastDirectory.StorageMode#FILE} mode.
+ *
+ * @author Marza
+ */
+public final class HFileHeader implements IdentifiedDataSerializable {
+    /**
+     * Checksum of files whose contents were not checksummed when written, e.g. loaded from a map store.
+     */
+    public static final long UNKNOWN_CHECKSUM = -1L;
+
+    private long fileId;
+    private long length;
+    private int chunkSize;
+    private int codecId;
+    private long checksum;
+    private long generation;
+    private String contentKey;
+    private String partitionKey;
+
+    public HFileHeader() {
+    }
+
+    public HFileHeader(long fileId, long length, int chunkSize) {
+        this(fileId, length, chunkSize, HBlockCodec.NONE.getId());
+    }
+
+    public HFileHeader(long fileId, long length, int chunkSize, int codecId) {
+        this(fileId, length, chunkSize, codecId, UNKNOWN_CHECKSUM, 0L);
+    }
+
+    public HFileHeader(long fileId, long length, int chunkSize, int codecId, long checksum, long generation) {
+        this(fileId, length, chunkSize, codecId, checksum, generation, null);
+    }
+
+    public HFileHeader(long fileId, long length, int chunkSize, int codecId, long checksum, long generation,
+                       String partitionKey) {
+        this(fileId, length, chunkSize, codecId, checksum, generation, null, partitionKey);
+    }
+
+    private HFileHeader(long fileId, long length, int chunkSize, int codecId, long checksum, long generation,
+                        String contentKey, String partitionKey) {
+        this.fileId = fileId;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.codecId = codecId;
+        this.checksum = checksum;
+        this.generation = generation;
+        this.contentKey = contentKey;
+        this.partitionKey = partitionKey;
+    }
+
+    /**
+     * @param length length of the written file.
+     * @return copy of this header with the given length.
+     */
+    public HFileHeader withLength(long length) {
+        return withContents(length, checksum);
+    }
+
+    /**
+     * @param length   length of the written file.
+     * @param checksum CRC32 of the written file.
+     * @return copy of this header with the given length and checksum.
+     */
+    public HFileHeader withContents(long length, long checksum) {
+        return new HFileHeader(fileId, length, chunkSize, codecId, checksum, generation, contentKey, partitionKey);
+    }
+
+    /**
+     * @param partitionKey partition key of the moved contents.
+     * @return copy of this header whose contents are in the partition with the given key.
+     */
+    public HFileHeader withPartitionKey(String partitionKey) {
+        return new HFileHeader(fileId, length, chunkSize, codecId, checksum, generation, contentKey, partitionKey);
+    }
+
+    /**
+     * @param contentKey key of the contents, see {@link #getContentKey()}.
+     * @param ref        the stored contents.
+     * @return copy of this header referring to the given stored contents, read with their chunk size and codec.
+     */
+    public HFileHeader withContentKey(String contentKey, HContentRef ref) {
+        return new HFileHeader(ref.getFileId(), length, ref.getChunkSize(), ref.getCodecId(), checksum, generation,
+                contentKey, ref.getPartitionKey());
+    }
+
+    /**
+     * @return random id of the stored contents, which in {@link HazelcastDirectory.StorageMode#CHUNKED}
+     * mode may be shared with other files with the same contents.
+     */
+    public long getFileId() {
+        return fileId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return size of the chunks in {@link HazelcastDirectory.StorageMode#CHUNKED} mode, of the blocks
+     * the file was written with in {@link HazelcastDirectory.StorageMode#FILE} mode.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return id of the {@link HBlockCodec} chunks are compressed with.
+     */
+    public int getCodecId() {
+        return codecId;
+    }
+
+    /**
+     * @return CRC32 of the whole file, {@link #UNKNOWN_CHECKSUM} if not known.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return position of the file in the order files were created in its directory, 0 if not known.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return key of the {@link HContentRef} counting the files that share the contents, {@code null} if the
+     * contents were never shared, as in {@link HazelcastDirectory.StorageMode#FILE} mode.
+     */
+    public String getContentKey() {
+        return contentKey;
+    }
+
+    /**
+     * @return partition key of the chunks in {@link HazelcastDirectory.StorageMode#CHUNKED} mode, that of
+     * the segment of the file that first stored the contents.
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @param index index of a chunk.
+     * @return key of the chunk.
+     */
+    public HChunkKey chunkKey(int index) {
+        return new HChunkKey(fileId, index, partitionKey);
+    }
+
+    /**
+     * @param index index of a chunk.
+     * @return number of file bytes held by the chunk.
+     */
+    public int chunkLength(int index) {
+        return (int) Math.min(chunkSize, length - (long) index * chunkSize);
+    }
+
+    /**
+     * @return number of chunks holding the contents of the file.
+     */
+    public int numChunks() {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(fileId=" + fileId + ", length=" + length + ", chunkSize=" + chunkSize
+                + ", codecId=" + codecId + ", checksum=" + checksum + ", generation=" + generation
+                + ", contentKey=" + contentKey + ", partitionKey=" + partitionKey + ")";
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(fileId);
+        out.writeLong(length);
+        out.writeInt(chunkSize);
+        out.writeByte(codecId);
+        out.writeLong(checksum);
+        out.writeLong(generation);
+        out.writeUTF(contentKey);
+        out.writeUTF(partitionKey);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        fileId = in.readLong();
+        length = in.readLong();
+        chunkSize = in.readInt();
+        codecId = in.readUnsignedByte();
+        checksum = in.readLong();
+        generation = in.readLong();
+        contentKey = in.readUTF();
+        partitionKey = in.readUTF();
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.FILE_HEADER_TYPE;
+    }
+}
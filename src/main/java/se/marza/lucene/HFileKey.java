@@ -0,0 +1,96 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+import com.hazelcast.core.PartitionAware;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import org.apache.lucene.index.IndexFileNames;
+
+/**
+ * Key of a file stored in {@link HazelcastDirectory.StorageMode#FILE} mode.
+ * <p>
+ * All files of a Lucene segment, e.g. {@code _3.doc}, {@code _3.tim} and {@code _3_1.liv}, share a
+ * partition, so reading or merging a segment talks to a single member. The partition is chosen by the
+ * index and segment name, so the segments of an index, and equally named segments of different
+ * indexes, are still spread over the cluster.
+ *
+ * @author Marza
+ */
+public final class HFileKey implements PartitionAware<String>, IdentifiedDataSerializable {
+
+    private String name;
+    private String partitionKey;
+
+    public HFileKey() {
+    }
+
+    /**
+     * @param index name of the index.
+     * @param name  name of the file.
+     */
+    public HFileKey(String index, String name) {
+        this.name = name;
+        this.partitionKey = partitionKey(index, name);
+    }
+
+    /**
+     * @param index name of an index.
+     * @param name  name of a file of the index.
+     * @return key of the partition holding the segment the file belongs to.
+     */
+    static String partitionKey(String index, String name) {
+        return index + '/' + IndexFileNames.parseSegmentName(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(name=" + name + ", partitionKey=" + partitionKey + ")";
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        HFileKey other = (HFileKey) obj;
+        return name.equals(other.name) && partitionKey.equals(other.partitionKey);
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(partitionKey);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        name = in.readUTF();
+        partitionKey = in.readUTF();
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.FILE_KEY_TYPE;
+    }
+}
@@ -2,97 +2,271 @@ package se.marza.lucene;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import com.google.common.io.ByteStreams;
+import com.hazelcast.config.Config;
+import com.hazelcast.config.MapStoreConfig;
+import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.MapLoader;
+import com.hazelcast.core.MapLoaderLifecycleSupport;
 import com.hazelcast.core.MapStore;
+import org.apache.lucene.index.IndexNotFoundException;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 
 /**
+ * Persists every {@link HFile} as a plain Lucene file in one directory.
+ * <p>
+ * A store holds the files of a single index, its keys take their partition from the name of the map it
+ * is initialized for. Use one store, with its own directory, per index.
+ * <p>
+ * The {@link HFileHeader}s of a {@link HazelcastDirectory} are not stored, {@link #headerLoader(String)}
+ * derives them from the files on disk. {@link #configure(Config, String)} sets up both maps of an index.
+ * <p>
+ * A file is written with a single gather write to a temporary file that is then atomically
+ * renamed into place, and read back with bulk channel reads straight into its blocks.
+ * {@link #storeAll(Map)} and {@link #loadAll(Collection)} work on many files in parallel.
+ * <p>
+ * Which files are loaded when the map starts is chosen by {@link InitialLoad}. Files left out of the
+ * initial load are still read through {@link #load(String)} the first time they are accessed, and can
+ * be loaded in the background with {@link HazelcastDirectory#warmUp()}.
+ *
  * @author Marza
  */
-public class HFileMapStore implements MapStore<String, HFile>, MapLoader<String, HFile> {
+public class HFileMapStore implements MapStore<HFileKey, HFile>, MapLoader<HFileKey, HFile>, MapLoaderLifecycleSupport {
+    private static final String TEMP_SUFFIX = ".hstore-tmp";
+
+    /**
+     * Files loaded when the map starts.
+     */
+    public enum InitialLoad {
+        /** Every file in the directory. */
+        ALL,
+        /** Only the files referenced by the latest commit, orphaned files are left on disk. */
+        COMMIT,
+        /** Only the latest segments_N file, every other file is loaded on first access. */
+        LAZY
+    }
 
     private final String path;
+    private final int parallelism;
+    private final InitialLoad initialLoad;
+    private volatile ExecutorService executor;
+    private volatile String mapName;
 
     public HFileMapStore(String path) {
+        this(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    public HFileMapStore(String path, int parallelism) {
+        this(path, parallelism, InitialLoad.ALL);
+    }
+
+    /**
+     * @param path        directory holding the files.
+     * @param parallelism number of files read or written at the same time by bulk operations.
+     * @param initialLoad files loaded when the map starts.
+     */
+    public HFileMapStore(String path, int parallelism, InitialLoad initialLoad) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        if (initialLoad == null) {
+            throw new IllegalArgumentException("initialLoad must not be null");
+        }
         this.path = path;
+        this.parallelism = parallelism;
+        this.initialLoad = initialLoad;
+    }
+
+    public InitialLoad getInitialLoad() {
+        return initialLoad;
+    }
+
+    /**
+     * @return write-through configuration that uses this store and loads its initial keys eagerly.
+     */
+    public MapStoreConfig newMapStoreConfig() {
+        return new MapStoreConfig()
+                .setEnabled(true)
+                .setImplementation(this)
+                .setWriteDelaySeconds(0)
+                .setInitialLoadMode(MapStoreConfig.InitialLoadMode.EAGER);
+    }
+
+    /**
+     * @param name name of the index.
+     * @return configuration that loads the headers of the stored files eagerly.
+     */
+    public MapStoreConfig newHeaderMapStoreConfig(String name) {
+        return new MapStoreConfig()
+                .setEnabled(true)
+                .setImplementation(headerLoader(name))
+                .setInitialLoadMode(MapStoreConfig.InitialLoadMode.EAGER);
+    }
+
+    /**
+     * Persists the index with the given name in this store.
+     *
+     * @param config configuration of the Hazelcast members.
+     * @param name   name of the index.
+     * @return the given configuration.
+     */
+    public Config configure(Config config, String name) {
+        HazelcastDirectory.configure(config, name);
+        config.getMapConfig(name).setMapStoreConfig(newMapStoreConfig());
+        config.getMapConfig(HazelcastDirectory.headerMapName(name)).setMapStoreConfig(newHeaderMapStoreConfig(name));
+        return config;
+    }
+
+    /**
+     * Headers are loaded for every file of the latest commit, unless {@link InitialLoad#ALL} loads every
+     * file, so that listing the directory is complete even when the contents are loaded lazily.
+     *
+     * @param name name of the index.
+     * @return loader of the {@link HFileHeader}s of the stored files.
+     */
+    public MapLoader<String, HFileHeader> headerLoader(String name) {
+        return new HeaderLoader(name);
+    }
+
+    @Override
+    public synchronized void init(HazelcastInstance hazelcastInstance, Properties properties, String mapName) {
+        // the map is named after the index, which keys need for their partition
+        if (this.mapName != null && !this.mapName.equals(mapName)) {
+            throw new IllegalStateException("store of map " + this.mapName + " can not also store map " + mapName
+                    + ", use one store per map");
+        }
+        this.mapName = mapName;
+    }
+
+    @Override
+    public void destroy() {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.shutdown();
+        }
     }
 
     @Override
-    public void store(String key, HFile value) {
+    public void store(HFileKey key, HFile value) {
+        Path file = new File(path, key.getName()).toPath();
+        Path temp = new File(path, key.getName() + TEMP_SUFFIX).toPath();
         try {
-            File file = new File(path + "/" + key);
-            if (Files.exists(file.toPath())) {
-                Files.delete(file.toPath());
-            }
-            Files.createFile(file.toPath());
-            for (byte[] bytes : value.buffers) {
-                Files.write(file.toPath(), bytes, StandardOpenOption.APPEND);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer[] blocks = blocks(value);
+                long remaining = value.getLength();
+                while (remaining > 0) {
+                    remaining -= channel.write(blocks);
+                }
+                channel.force(false);
             }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    @Override
-    public void storeAll(Map<String, HFile> map) {
-        for (Map.Entry<String, HFile> entry : map.entrySet()) {
-            store(entry.getKey(), entry.getValue());
+    /**
+     * @return views of the written part of every block of the file.
+     */
+    private static ByteBuffer[] blocks(HFile value) {
+        long length = value.getLength();
+        int blockSize = value.blockSize();
+        int numBlocks = (int) ((length + blockSize - 1) / blockSize);
+        ByteBuffer[] blocks = new ByteBuffer[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            int blockLength = (int) Math.min(blockSize, length - (long) i * blockSize);
+            if (value instanceof HDirectFile) {
+                ByteBuffer slab = ((HDirectFile) value).getSlab(i).duplicate();
+                slab.clear();
+                slab.limit(blockLength);
+                blocks[i] = slab;
+            } else {
+                blocks[i] = ByteBuffer.wrap(value.getBuffer(i), 0, blockLength);
+            }
         }
+        return blocks;
+    }
+
+    @Override
+    public void storeAll(Map<HFileKey, HFile> map) {
+        forEachParallel(map.keySet(), key -> store(key, map.get(key)));
     }
 
     @Override
-    public void delete(String key) {
+    public void delete(HFileKey key) {
         try {
-            File file = new File(path + "/" + key);
-            if (Files.exists(file.toPath())) {
-                Files.delete(file.toPath());
-            }
+            Files.deleteIfExists(new File(path, key.getName()).toPath());
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
     @Override
-    public void deleteAll(Collection<String> keys) {
+    public void deleteAll(Collection<HFileKey> keys) {
         keys.forEach(this::delete);
     }
 
     @Override
-    public HFile load(String key) {
-        try {
-            File file = new File(path + "/" + key);
-            if (Files.exists(file.toPath())) {
-                HFile hFile = new HFile();
-                HOutputStream hOutputStream = new HOutputStream(key, hFile);
-                InputStream inputStream = Files.newInputStream(file.toPath());
-                ByteStreams.copy(inputStream, new HOutStream(hOutputStream));
-                return hFile;
+    public HFile load(HFileKey key) {
+        Path file = new File(path, key.getName()).toPath();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            HFile hFile = new HFile(null, HFile.contiguousBlockSize(length));
+            for (long position = 0; position < length; ) {
+                int blockLength = (int) Math.min(hFile.blockSize(), length - position);
+                ByteBuffer block = ByteBuffer.wrap(hFile.addBuffer(blockLength));
+                while (block.hasRemaining()) {
+                    if (channel.read(block, position + block.position()) < 0) {
+                        throw new IOException("file truncated while loading: " + file);
+                    }
+                }
+                position += blockLength;
             }
+            hFile.setLength(length);
+            hFile.seal();
+            return hFile;
+        } catch (NoSuchFileException e) {
+            return null;
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        return null;
     }
 
     @Override
-    public Map<String, HFile> loadAll(Collection<String> keys) {
-        Map<String, HFile> map = new HashMap<>(keys.size());
-        for (String key : keys) {
+    public Map<HFileKey, HFile> loadAll(Collection<HFileKey> keys) {
+        Map<HFileKey, HFile> map = new ConcurrentHashMap<>(keys.size());
+        forEachParallel(keys, key -> {
             HFile hFile = load(key);
             if (hFile != null) {
                 map.put(key, hFile);
             }
-        }
+        });
 
         if (!map.isEmpty()) {
             return map;
@@ -101,28 +275,136 @@ public class HFileMapStore implements MapStore<String, HFile>, MapLoader<String,
     }
 
     @Override
-    public Iterable<String> loadAllKeys() {
-        try {
-            Stream<Path> stream = Files.list(new File(path).toPath());
-            return () -> stream.map(Path::getFileName)
+    public Iterable<HFileKey> loadAllKeys() {
+        String mapName = this.mapName;
+        if (mapName == null) {
+            throw new IllegalStateException("store is not initialized for a map");
+        }
+        List<HFileKey> keys = new ArrayList<>();
+        for (String name : keys(initialLoad)) {
+            keys.add(new HFileKey(mapName, name));
+        }
+        return keys;
+    }
+
+    private List<String> keys(InitialLoad load) {
+        if (load != InitialLoad.ALL) {
+            try (Directory directory = FSDirectory.open(Paths.get(path))) {
+                SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+                if (load == InitialLoad.LAZY) {
+                    return Collections.singletonList(infos.getSegmentsFileName());
+                }
+                return new ArrayList<>(infos.files(true));
+            } catch (IndexNotFoundException e) {
+                // nothing committed yet, fall back to every file
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        try (Stream<Path> stream = Files.list(new File(path).toPath())) {
+            return stream.map(Path::getFileName)
                     .filter(p -> p != null)
                     .map(p -> p.toFile().getName())
-                    .iterator();
+                    .filter(name -> !name.endsWith(TEMP_SUFFIX))
+                    .collect(Collectors.toList());
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    private static final class HOutStream extends OutputStream {
-        private HOutputStream stream;
+    /**
+     * Headers of loaded files have generation 0, they predate every file created since the cluster started.
+     * Their id is derived from the index and file name, so every member loading a file agrees on it.
+     */
+    private HFileHeader loadHeader(String index, String key) {
+        try {
+            long length = Files.size(new File(path, key).toPath());
+            long fileId = (long) index.hashCode() << 32 | key.hashCode() & 0xFFFFFFFFL;
+            return new HFileHeader(fileId, length, HFile.contiguousBlockSize(length), HBlockCodec.NONE.getId(),
+                    HFileHeader.UNKNOWN_CHECKSUM, 0L, HFileKey.partitionKey(index, key));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class HeaderLoader implements MapLoader<String, HFileHeader> {
+        private final String index;
+
+        HeaderLoader(String index) {
+            this.index = index;
+        }
+
+        @Override
+        public HFileHeader load(String key) {
+            return loadHeader(index, key);
+        }
 
-        public HOutStream(HOutputStream stream) {
-            this.stream = stream;
+        @Override
+        public Map<String, HFileHeader> loadAll(Collection<String> keys) {
+            Map<String, HFileHeader> map = new HashMap<>(keys.size());
+            for (String key : keys) {
+                HFileHeader header = loadHeader(index, key);
+                if (header != null) {
+                    map.put(key, header);
+                }
+            }
+            return map;
         }
 
         @Override
-        public void write ( int b)throws IOException {
-            stream.writeByte((byte) (b & 0xFF));
+        public Iterable<String> loadAllKeys() {
+            return keys(initialLoad == InitialLoad.ALL ? InitialLoad.ALL : InitialLoad.COMMIT);
+        }
+    }
+
+    private <K> void forEachParallel(Collection<K> keys, Consumer<K> task) {
+        if (keys.size() <= 1 || parallelism == 1) {
+            keys.forEach(task);
+            return;
+        }
+        ExecutorService executor = executor();
+        List<Future<?>> futures = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            futures.add(executor.submit(() -> task.accept(key)));
+        }
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private ExecutorService executor() {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.executor;
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                        Thread thread = new Thread(runnable, "HFileMapStore-" + path);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.executor = executor;
+                }
+            }
         }
+        return executor;
     }
 }
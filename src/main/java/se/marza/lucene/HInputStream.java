@@ -4,15 +4,21 @@ import java.io.EOFException;
 import java.io.IOException;
 
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
 
 /**
  * @author Marza
  */
 public class HInputStream extends IndexInput implements Cloneable {
-    static final int BUFFER_SIZE = HOutputStream.BUFFER_SIZE;
+    /**
+     * Consecutive block switches after which reads count as sequential.
+     */
+    static final int SEQUENTIAL_SWITCHES = 2;
 
-    private HFile file;
+    private HBlockSource file;
     private long length;
+    private final int blockSize;
+    private final HMetrics metrics;
 
     private byte[] currentBuffer;
     private int currentBufferIndex;
@@ -21,15 +27,26 @@ public class HInputStream extends IndexInput implements Cloneable {
     private long bufferStart;
     private int bufferLength;
 
+    private int readAheadBlocks;
+    private boolean readAheadEagerly;
+    private int lastSwitchedIndex = -1;
+    private int sequentialSwitches;
+    private int readAheadUntil;
+
     public HInputStream(HFile file, String name) throws IOException {
-        this(name, file, file.length);
+        this(name, file, file.length, null);
     }
 
-    HInputStream(String name, HFile file, long length) throws IOException {
+    /**
+     * @param metrics metrics of the directory the file was opened from, may be null.
+     */
+    HInputStream(String name, HBlockSource file, long length, HMetrics metrics) throws IOException {
         super("HInputStream(name=" + name + ")");
         this.file = file;
         this.length = length;
-        if (length / BUFFER_SIZE >= Integer.MAX_VALUE) {
+        this.blockSize = file.blockSize();
+        this.metrics = metrics;
+        if (length / blockSize >= Integer.MAX_VALUE) {
             throw new IOException("HInputStream too large length=" + length + ": " + name);
         }
 
@@ -39,6 +56,17 @@ public class HInputStream extends IndexInput implements Cloneable {
         currentBuffer = null;
     }
 
+    /**
+     * Keeps the blocks after the current one in flight while reads are sequential.
+     *
+     * @param blocks  number of blocks read ahead, 0 to disable.
+     * @param eagerly read ahead from the first block on, for files known to be read start to finish.
+     */
+    void setReadAhead(int blocks, boolean eagerly) {
+        this.readAheadBlocks = blocks;
+        this.readAheadEagerly = eagerly;
+    }
+
     @Override
     public void close() {
         // nothing to do here
@@ -75,22 +103,139 @@ public class HInputStream extends IndexInput implements Cloneable {
         }
     }
 
+    // The primitives below decode straight from the current block when the value is inside it
+    // and only fall back to reading byte by byte at block edges.
+
+    @Override
+    public short readShort() throws IOException {
+        if (bufferLength - bufferPosition >= Short.BYTES) {
+            byte[] b = currentBuffer;
+            int p = bufferPosition;
+            bufferPosition = p + Short.BYTES;
+            return (short) (((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF));
+        }
+        return super.readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        if (bufferLength - bufferPosition >= Integer.BYTES) {
+            byte[] b = currentBuffer;
+            int p = bufferPosition;
+            bufferPosition = p + Integer.BYTES;
+            return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+        }
+        return super.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        if (bufferLength - bufferPosition >= Long.BYTES) {
+            byte[] b = currentBuffer;
+            int p = bufferPosition;
+            bufferPosition = p + Long.BYTES;
+            int high = ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+            int low = ((b[p + 4] & 0xFF) << 24) | ((b[p + 5] & 0xFF) << 16) | ((b[p + 6] & 0xFF) << 8) | (b[p + 7] & 0xFF);
+            return ((long) high << 32) | (low & 0xFFFFFFFFL);
+        }
+        return super.readLong();
+    }
+
+    @Override
+    public int readVInt() throws IOException {
+        // a vInt takes at most 5 bytes
+        if (bufferLength - bufferPosition < 5) {
+            return super.readVInt();
+        }
+        byte[] b = currentBuffer;
+        int p = bufferPosition;
+        byte v = b[p++];
+        int i = v & 0x7F;
+        if (v < 0) {
+            v = b[p++];
+            i |= (v & 0x7F) << 7;
+            if (v < 0) {
+                v = b[p++];
+                i |= (v & 0x7F) << 14;
+                if (v < 0) {
+                    v = b[p++];
+                    i |= (v & 0x7F) << 21;
+                    if (v < 0) {
+                        v = b[p++];
+                        // the last byte only holds the highest 4 bits
+                        i |= (v & 0x0F) << 28;
+                        if ((v & 0xF0) != 0) {
+                            throw new IOException("Invalid vInt detected (too many bits)");
+                        }
+                    }
+                }
+            }
+        }
+        bufferPosition = p;
+        return i;
+    }
+
+    @Override
+    public long readVLong() throws IOException {
+        // a non-negative vLong takes at most 9 bytes
+        if (bufferLength - bufferPosition < 9) {
+            return super.readVLong();
+        }
+        byte[] b = currentBuffer;
+        int p = bufferPosition;
+        long i = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            byte v = b[p++];
+            i |= (v & 0x7FL) << shift;
+            if (v >= 0) {
+                bufferPosition = p;
+                return i;
+            }
+        }
+        throw new IOException("Invalid vLong detected (negative values disallowed)");
+    }
+
     private void switchCurrentBuffer(boolean enforceEOF) throws IOException {
-        bufferStart = (long) BUFFER_SIZE * (long) currentBufferIndex;
-        if (currentBufferIndex >= file.numBuffers()) {
+        bufferStart = (long) blockSize * (long) currentBufferIndex;
+        if (currentBufferIndex >= file.numBlocks()) {
             // end of file reached, no more buffers left
             if (enforceEOF) {
                 throw new EOFException("read past EOF: " + this);
             } else {
                 // Force EOF if a read takes place at this position
                 currentBufferIndex--;
-                bufferPosition = BUFFER_SIZE;
+                bufferPosition = blockSize;
             }
         } else {
-            currentBuffer = file.getBuffer(currentBufferIndex);
+            if (readAheadBlocks > 0) {
+                readAhead(currentBufferIndex);
+            }
+            currentBuffer = file.block(currentBufferIndex);
             bufferPosition = 0;
             long buflen = length - bufferStart;
-            bufferLength = buflen > BUFFER_SIZE ? BUFFER_SIZE : (int) buflen;
+            bufferLength = buflen > blockSize ? blockSize : (int) buflen;
+            if (metrics != null) {
+                metrics.blockRead(bufferLength);
+            }
+        }
+    }
+
+    private void readAhead(int index) {
+        if (index == lastSwitchedIndex + 1) {
+            sequentialSwitches++;
+        } else {
+            sequentialSwitches = 0;
+            readAheadUntil = 0;
+        }
+        lastSwitchedIndex = index;
+        if (readAheadEagerly || sequentialSwitches > SEQUENTIAL_SWITCHES) {
+            int numBlocks = (int) ((length + blockSize - 1) / blockSize);
+            int from = Math.max(index + 1, readAheadUntil);
+            int to = Math.min(numBlocks, index + 1 + readAheadBlocks);
+            if (from < to) {
+                file.readAhead(from, to - from);
+                readAheadUntil = to;
+            }
         }
     }
 
@@ -101,11 +246,11 @@ public class HInputStream extends IndexInput implements Cloneable {
 
     @Override
     public void seek(long pos) throws IOException {
-        if (currentBuffer == null || pos < bufferStart || pos >= bufferStart + BUFFER_SIZE) {
-            currentBufferIndex = (int) (pos / BUFFER_SIZE);
+        if (currentBuffer == null || pos < bufferStart || pos >= bufferStart + blockSize) {
+            currentBufferIndex = (int) (pos / blockSize);
             switchCurrentBuffer(false);
         }
-        bufferPosition = (int) (pos % BUFFER_SIZE);
+        bufferPosition = (int) (pos % blockSize);
     }
 
     @Override
@@ -113,8 +258,9 @@ public class HInputStream extends IndexInput implements Cloneable {
         if (offset < 0 || length < 0 || offset + length > this.length) {
             throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
         }
-        return new HInputStream(getFullSliceDescription(sliceDescription), file, offset + length) {
+        return new HInputStream(getFullSliceDescription(sliceDescription), file, offset + length, metrics) {
             {
+                setReadAhead(readAheadBlocks, readAheadEagerly);
                 seek(0L);
             }
 
@@ -140,6 +286,130 @@ public class HInputStream extends IndexInput implements Cloneable {
             public IndexInput slice(String sliceDescription, long ofs, long len) throws IOException {
                 return super.slice(sliceDescription, offset + ofs, len);
             }
+
+            @Override
+            public RandomAccessInput randomAccessSlice(long ofs, long len) throws IOException {
+                return super.randomAccessSlice(offset + ofs, len);
+            }
         };
     }
+
+    /**
+     * Returns positional access that finds block and offset directly instead of seeking. It shares
+     * no state with this input and can be used by many threads.
+     */
+    @Override
+    public RandomAccessInput randomAccessSlice(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("randomAccessSlice() out of bounds: offset=" + offset
+                    + ", length=" + length + ": " + this);
+        }
+        return new BlockRandomAccessInput(file, offset, length);
+    }
+
+    private static final class BlockRandomAccessInput implements RandomAccessInput {
+        private final HBlockSource file;
+        private final long offset;
+        private final long length;
+        private final int blockSize;
+        // all blocks of files already on the heap, otherwise blocks are fetched through the file
+        private final byte[][] blocks;
+        // last block fetched through the file, replaced as a whole so that threads may race on it
+        private LastBlock last;
+
+        BlockRandomAccessInput(HBlockSource file, long offset, long length) throws IOException {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.blockSize = file.blockSize();
+            if (file.isHeapResident()) {
+                blocks = new byte[file.numBlocks()][];
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = file.block(i);
+                }
+            } else {
+                blocks = null;
+            }
+        }
+
+        private byte[] block(int index) throws IOException {
+            if (blocks != null) {
+                return blocks[index];
+            }
+            LastBlock block = last;
+            if (block == null || block.index != index) {
+                block = new LastBlock(index, file.block(index));
+                last = block;
+            }
+            return block.bytes;
+        }
+
+        /**
+         * @return position in the file of the given position in this slice.
+         */
+        private long position(long pos, int size) throws EOFException {
+            if (pos < 0 || pos > length - size) {
+                throw new EOFException("read of " + size + " bytes at " + pos + " past EOF, length=" + length);
+            }
+            return offset + pos;
+        }
+
+        @Override
+        public byte readByte(long pos) throws IOException {
+            long position = position(pos, Byte.BYTES);
+            return block((int) (position / blockSize))[(int) (position % blockSize)];
+        }
+
+        @Override
+        public short readShort(long pos) throws IOException {
+            return (short) readBigEndian(position(pos, Short.BYTES), Short.BYTES);
+        }
+
+        @Override
+        public int readInt(long pos) throws IOException {
+            return (int) readBigEndian(position(pos, Integer.BYTES), Integer.BYTES);
+        }
+
+        @Override
+        public long readLong(long pos) throws IOException {
+            return readBigEndian(position(pos, Long.BYTES), Long.BYTES);
+        }
+
+        private long readBigEndian(long position, int size) throws IOException {
+            int index = (int) (position / blockSize);
+            int blockOffset = (int) (position % blockSize);
+            byte[] block = block(index);
+            long value = 0;
+            if (blockOffset + size <= blockSize) {
+                for (int i = 0; i < size; i++) {
+                    value = (value << 8) | (block[blockOffset + i] & 0xFF);
+                }
+                return value;
+            }
+            // spans two blocks
+            for (int i = 0; i < size; i++) {
+                if (blockOffset == blockSize) {
+                    block = block(++index);
+                    blockOffset = 0;
+                }
+                value = (value << 8) | (block[blockOffset++] & 0xFF);
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "BlockRandomAccessInput(offset=" + offset + ", length=" + length + ")";
+        }
+    }
+
+    private static final class LastBlock {
+        final int index;
+        final byte[] bytes;
+
+        LastBlock(int index, byte[] bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+    }
 }
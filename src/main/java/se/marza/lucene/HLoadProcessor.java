@@ -0,0 +1,50 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Entry processor that does nothing but make the owning member load the entry from its map store.
+ * Used by {@link HazelcastDirectory#prefetch} so that files are loaded where they are stored instead
+ * of being shipped to the caller.
+ *
+ * @author Marza
+ */
+final class HLoadProcessor implements EntryProcessor<Object, Object>, IdentifiedDataSerializable {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object process(Map.Entry<Object, Object> entry) {
+        // the entry has already been loaded when the processor runs
+        return null;
+    }
+
+    @Override
+    public EntryBackupProcessor<Object, Object> getBackupProcessor() {
+        return null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.LOAD_PROCESSOR_TYPE;
+    }
+}
@@ -0,0 +1,155 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceAware;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SerialMergeScheduler;
+
+/**
+ * Merges the segments of an index on the member it is sent to, see
+ * {@link HazelcastDirectory#mergeOnDataOwner(int)}.
+ * <p>
+ * The task opens its own {@code IndexWriter}, so it takes the cluster-wide write lock of the index and
+ * fails with a {@link org.apache.lucene.store.LockObtainFailedException} while another writer is open.
+ * It carries the settings of the directory it was sent from, so merged files are written as that
+ * directory would write them.
+ *
+ * @author Marza
+ */
+final class HMergeTask implements Callable<Integer>, HazelcastInstanceAware, IdentifiedDataSerializable {
+
+    private String name;
+    private HazelcastDirectory.StorageMode storageMode;
+    private int maxSegments;
+    private int blockSize;
+    private int maxBlockSize;
+    private boolean offHeap;
+    private long readAheadSize;
+    private long blockCacheSize;
+    private Map<String, HBlockCodec> codecs;
+    private transient HazelcastInstance instance;
+
+    HMergeTask() {
+    }
+
+    /**
+     * @param directory   directory whose index is merged and whose settings the merge writes with.
+     * @param maxSegments number of segments to force merge down to, 0 to run the merges the default
+     *                    merge policy selects.
+     */
+    HMergeTask(HazelcastDirectory directory, int maxSegments) {
+        this.name = directory.getName();
+        this.storageMode = directory.getStorageMode();
+        this.maxSegments = maxSegments;
+        this.blockSize = directory.getBlockSize();
+        this.maxBlockSize = directory.getMaxBlockSize();
+        this.offHeap = directory.isOffHeap();
+        this.readAheadSize = directory.getReadAheadSize();
+        HBlockCache blockCache = directory.getBlockCache();
+        this.blockCacheSize = blockCache == null ? 0 : blockCache.getMaxSizeInBytes();
+        this.codecs = directory.codecs();
+    }
+
+    @Override
+    public void setHazelcastInstance(HazelcastInstance instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * @return number of segments of the index after merging.
+     */
+    @Override
+    public Integer call() throws IOException {
+        // merges never analyze text, the analyzer is only there to satisfy the writer
+        IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer())
+                .setOpenMode(IndexWriterConfig.OpenMode.APPEND)
+                .setMergeScheduler(new SerialMergeScheduler());
+        try (HazelcastDirectory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, config)) {
+                if (maxSegments > 0) {
+                    writer.forceMerge(maxSegments);
+                } else {
+                    writer.maybeMerge();
+                }
+                writer.commit();
+            }
+            return SegmentInfos.readLatestCommit(directory).size();
+        }
+    }
+
+    private HazelcastDirectory newDirectory() {
+        HazelcastDirectory directory = new HazelcastDirectory(instance, name, storageMode);
+        // raise the bound first, so that the block size is accepted whichever way it moves
+        directory.setMaxBlockSize(Math.max(maxBlockSize, directory.getBlockSize()));
+        directory.setBlockSize(blockSize);
+        directory.setMaxBlockSize(maxBlockSize);
+        directory.setOffHeap(offHeap);
+        directory.setReadAheadSize(readAheadSize);
+        directory.setBlockCache(blockCacheSize > 0 ? new HBlockCache(blockCacheSize) : null);
+        for (Map.Entry<String, HBlockCodec> codec : codecs.entrySet()) {
+            directory.setCodec(codec.getKey(), codec.getValue());
+        }
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(name=" + name + ", storageMode=" + storageMode
+                + ", maxSegments=" + maxSegments + ")";
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeUTF(storageMode.name());
+        out.writeInt(maxSegments);
+        out.writeInt(blockSize);
+        out.writeInt(maxBlockSize);
+        out.writeBoolean(offHeap);
+        out.writeLong(readAheadSize);
+        out.writeLong(blockCacheSize);
+        out.writeInt(codecs.size());
+        for (Map.Entry<String, HBlockCodec> codec : codecs.entrySet()) {
+            out.writeUTF(codec.getKey());
+            out.writeInt(codec.getValue().getId());
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        name = in.readUTF();
+        storageMode = HazelcastDirectory.StorageMode.valueOf(in.readUTF());
+        maxSegments = in.readInt();
+        blockSize = in.readInt();
+        maxBlockSize = in.readInt();
+        offHeap = in.readBoolean();
+        readAheadSize = in.readLong();
+        blockCacheSize = in.readLong();
+        int size = in.readInt();
+        codecs = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            codecs.put(in.readUTF(), HBlockCodec.forId(in.readInt()));
+        }
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.MERGE_TASK_TYPE;
+    }
+}
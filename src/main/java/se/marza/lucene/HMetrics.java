@@ -0,0 +1,279 @@
+package se.marza.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Call counts, latencies and traffic of a {@link HazelcastDirectory}.
+ * <p>
+ * Latencies are kept in histograms with one bucket per power of two nanoseconds, so percentiles
+ * are accurate within a factor of two. Recording only touches {@link LongAdder}s.
+ *
+ * @author Marza
+ */
+public final class HMetrics {
+
+    /**
+     * Timed operations.
+     */
+    public enum Op {
+        OPEN_INPUT("openInput"),
+        CREATE_OUTPUT("createOutput"),
+        FILE_LENGTH("fileLength"),
+        RENAME_FILE("renameFile"),
+        DELETE_FILE("deleteFile"),
+        /** Fetch of a file or chunk from the cluster. */
+        FETCH("fetch"),
+        /** Store of a written file in the cluster when its output is closed. */
+        PUBLISH("publish");
+
+        private final String key;
+
+        Op(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return prefix of the operation in {@link #snapshot()}.
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final int BUCKETS = 64;
+
+    private final Histogram[] histograms = new Histogram[Op.values().length];
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+    private final LongAdder blockSwitches = new LongAdder();
+    private final LongAdder blocksReadAhead = new LongAdder();
+
+    HMetrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    void record(Op op, long startNanos) {
+        histograms[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void fetched(long startNanos, long bytes) {
+        record(Op.FETCH, startNanos);
+        bytesFetched.add(bytes);
+    }
+
+    void blockRead(int bytes) {
+        blockSwitches.increment();
+        bytesRead.add(bytes);
+    }
+
+    void readAhead() {
+        blocksReadAhead.increment();
+    }
+
+    void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public long getCount(Op op) {
+        return histograms[op.ordinal()].count.sum();
+    }
+
+    public long getTotalNanos(Op op) {
+        return histograms[op.ordinal()].totalNanos.sum();
+    }
+
+    public long getMaxNanos(Op op) {
+        return histograms[op.ordinal()].maxNanos.get();
+    }
+
+    /**
+     * @param op         operation.
+     * @param percentile between 0 and 100.
+     * @return upper bound of the latency below which the given percentage of calls completed, 0 without calls.
+     */
+    public long getPercentileNanos(Op op, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        return histograms[op.ordinal()].percentile(percentile);
+    }
+
+    /**
+     * @return bytes of the blocks inputs switched to, each switch counts the whole block.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * @return bytes of the files written by closed outputs.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return bytes fetched from the cluster, after compression.
+     */
+    public long getBytesFetched() {
+        return bytesFetched.sum();
+    }
+
+    /**
+     * @return number of times an input moved to another block.
+     */
+    public long getBlockSwitches() {
+        return blockSwitches.sum();
+    }
+
+    /**
+     * @return number of blocks requested asynchronously ahead of sequential readers.
+     */
+    public long getBlocksReadAhead() {
+        return blocksReadAhead.sum();
+    }
+
+    /**
+     * @return current value of every metric by name, latencies in microseconds.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            snapshot.put(op.key + ".count", getCount(op));
+            snapshot.put(op.key + ".totalMicros", TimeUnit.NANOSECONDS.toMicros(getTotalNanos(op)));
+            snapshot.put(op.key + ".p50Micros", TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(op, 50)));
+            snapshot.put(op.key + ".p99Micros", TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(op, 99)));
+            snapshot.put(op.key + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(getMaxNanos(op)));
+        }
+        snapshot.put("bytesRead", getBytesRead());
+        snapshot.put("bytesWritten", getBytesWritten());
+        snapshot.put("bytesFetched", getBytesFetched());
+        snapshot.put("blockSwitches", getBlockSwitches());
+        snapshot.put("blocksReadAhead", getBlocksReadAhead());
+        return snapshot;
+    }
+
+    /**
+     * @return read-only MBean exposing {@link #snapshot()} as attributes.
+     */
+    DynamicMBean newMBean() {
+        return new MetricsMBean();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + snapshot();
+    }
+
+    private static final class Histogram {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            // bucket i holds latencies from 2^(i-1) up to 2^i - 1 nanoseconds
+            buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        }
+
+        long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min((1L << i) - 1, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+    }
+
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("read-only attribute: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> snapshot = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+            }
+            return new MBeanInfo(HMetrics.class.getName(), "HazelcastDirectory metrics", attributes, null,
+                    new MBeanOperationInfo[0], null);
+        }
+    }
+}
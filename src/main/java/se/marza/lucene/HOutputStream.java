@@ -15,10 +15,16 @@ import org.apache.lucene.util.Accountables;
  * @author Marza
  */
 public class HOutputStream extends IndexOutput implements Accountable {
+    /**
+     * Default block size of files that are not given one explicitly.
+     */
     static final int BUFFER_SIZE = 1024;
 
-    private HFile file;
-    private String name;
+    private final HFile file;
+    private final HazelcastDirectory directory;
+    private final HFileHeader header;
+    private final String name;
+    protected final int blockSize;
     private byte[] currentBuffer;
     private int currentBufferIndex;
 
@@ -27,11 +33,22 @@ public class HOutputStream extends IndexOutput implements Accountable {
     private int bufferLength;
 
     private final Checksum crc;
+    private boolean closed;
 
     public HOutputStream(String name, HFile file) {
+        this(name, file, null);
+    }
+
+    /**
+     * @param header header of the file in its directory, published with the final length and checksum.
+     */
+    HOutputStream(String name, HFile file, HFileHeader header) {
         super("HOutputStream(name=\"" + name + "\")");
         this.name = name;
         this.file = file;
+        this.directory = file.directory;
+        this.header = header;
+        this.blockSize = file.blockSize();
         currentBufferIndex = -1;
         currentBuffer = null;
         boolean checksum = true; // hardcoded for now
@@ -105,7 +122,13 @@ public class HOutputStream extends IndexOutput implements Accountable {
 
     @Override
     public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
         flush();
+        file.seal();
+        publish();
     }
 
     /* TODO: WAS HERE
@@ -164,14 +187,71 @@ public class HOutputStream extends IndexOutput implements Accountable {
         //       OffHeapHazelcastDirectory.fileMap.put(name,file);
     }
 
-    private void switchCurrentBuffer() {
-        if (currentBufferIndex == file.numBuffers()) {
-            currentBuffer = file.addBuffer(BUFFER_SIZE);
-        } else {
-            currentBuffer = file.getBuffer(currentBufferIndex);
+    // The primitives below encode straight into the current block when the value fits
+    // and only fall back to writing byte by byte at block edges. writeVInt and writeVLong
+    // are final in DataOutput and always go through writeByte.
+
+    @Override
+    public void writeShort(short i) throws IOException {
+        if (bufferLength - bufferPosition < Short.BYTES) {
+            super.writeShort(i);
+            return;
+        }
+        byte[] b = currentBuffer;
+        int p = bufferPosition;
+        b[p] = (byte) (i >> 8);
+        b[p + 1] = (byte) i;
+        advance(p, Short.BYTES);
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        if (bufferLength - bufferPosition < Integer.BYTES) {
+            super.writeInt(i);
+            return;
+        }
+        byte[] b = currentBuffer;
+        int p = bufferPosition;
+        b[p] = (byte) (i >> 24);
+        b[p + 1] = (byte) (i >> 16);
+        b[p + 2] = (byte) (i >> 8);
+        b[p + 3] = (byte) i;
+        advance(p, Integer.BYTES);
+    }
+
+    @Override
+    public void writeLong(long i) throws IOException {
+        if (bufferLength - bufferPosition < Long.BYTES) {
+            super.writeLong(i);
+            return;
         }
+        byte[] b = currentBuffer;
+        int p = bufferPosition;
+        b[p] = (byte) (i >> 56);
+        b[p + 1] = (byte) (i >> 48);
+        b[p + 2] = (byte) (i >> 40);
+        b[p + 3] = (byte) (i >> 32);
+        b[p + 4] = (byte) (i >> 24);
+        b[p + 5] = (byte) (i >> 16);
+        b[p + 6] = (byte) (i >> 8);
+        b[p + 7] = (byte) i;
+        advance(p, Long.BYTES);
+    }
+
+    /**
+     * Moves past bytes written directly into the current buffer.
+     */
+    private void advance(int start, int length) {
+        if (crc != null) {
+            crc.update(currentBuffer, start, length);
+        }
+        bufferPosition = start + length;
+    }
+
+    private void switchCurrentBuffer() throws IOException {
+        currentBuffer = nextBuffer(currentBufferIndex);
         bufferPosition = 0;
-        bufferStart = (long) BUFFER_SIZE * (long) currentBufferIndex;
+        bufferStart = (long) blockSize * (long) currentBufferIndex;
         bufferLength = currentBuffer.length;
     }
 
@@ -180,7 +260,40 @@ public class HOutputStream extends IndexOutput implements Accountable {
         if (pointer > file.length) {
             file.setLength(pointer);
         }
-        HazelcastDirectory.fileMap.set(name, file);
+    }
+
+    /**
+     * Expert: returns the buffer to continue writing at.
+     * Buffers are requested in order, so all buffers before {@code index} are complete.
+     *
+     * @param index index of the buffer.
+     * @return buffer of {@link #blockSize} bytes.
+     * @throws IOException if completed buffers can not be handed off.
+     */
+    protected byte[] nextBuffer(int index) throws IOException {
+        if (index == file.numBuffers()) {
+            return file.addBuffer(blockSize);
+        }
+        return file.getBuffer(index);
+    }
+
+    /**
+     * Makes the written contents visible in the directory, called once on {@link #close()}.
+     *
+     * @throws IOException if the contents could not be stored.
+     */
+    protected void publish() throws IOException {
+        if (directory != null) {
+            long start = System.nanoTime();
+            long length = file.getLength();
+            HFileHeader written = header != null ? header : directory.newHeader(name, blockSize, HBlockCodec.NONE.getId());
+            // contents first, the header makes the file visible
+            directory.fileMap.set(directory.fileKey(name), file);
+            directory.headerMap.set(name, written.withContents(length, getChecksum()));
+            directory.account(written, file.ramBytesUsed());
+            directory.metrics.record(HMetrics.Op.PUBLISH, start);
+            directory.metrics.written(length);
+        }
     }
 
     // TODO: had @Override
@@ -198,7 +311,7 @@ public class HOutputStream extends IndexOutput implements Accountable {
      */
     @Override
     public long ramBytesUsed() {
-        return (long) file.numBuffers() * (long) BUFFER_SIZE;
+        return (long) file.numBuffers() * (long) blockSize;
     }
 
     @Override
@@ -0,0 +1,204 @@
+package se.marza.lucene;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Single file holding all files of one commit, written and read sequentially.
+ * <p>
+ * Layout: a header (magic, version, generation, number of files), a file table (name and length
+ * of every file) and the CRC32 of both, followed by the raw contents of every file, each followed
+ * by its own CRC32. The segments_N file comes last so that a restored commit never becomes visible
+ * before its files.
+ *
+ * @author Marza
+ */
+final class HPackFile {
+    private static final int MAGIC = 0x4850414B;
+    private static final int VERSION = 1;
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+    private static final long RESTORE_BATCH_SIZE = 32L << 20;
+
+    private HPackFile() {
+    }
+
+    /**
+     * Writes the given files to a pack file, replacing it atomically.
+     */
+    static void write(HazelcastDirectory directory, long generation, Iterable<String> files, Path pack)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        String segmentsFileName = null;
+        for (String file : files) {
+            if (file.startsWith(IndexFileNames.SEGMENTS)) {
+                segmentsFileName = file;
+            } else {
+                names.add(file);
+            }
+        }
+        if (segmentsFileName == null) {
+            throw new IllegalArgumentException("no segments file in " + files);
+        }
+        names.add(segmentsFileName);
+
+        Path temp = pack.resolveSibling(pack.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try {
+            try (OutputStream os = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(
+                         new CheckedOutputStream(new BufferedOutputStream(os, IO_BUFFER_SIZE), crc))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(generation);
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                    out.writeLong(directory.fileLength(name));
+                }
+                out.writeLong(crc.getValue());
+
+                byte[] buffer = new byte[IO_BUFFER_SIZE];
+                for (String name : names) {
+                    crc.reset();
+                    try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+                        for (long remaining = in.length(); remaining > 0; ) {
+                            int length = (int) Math.min(buffer.length, remaining);
+                            in.readBytes(buffer, 0, length);
+                            out.write(buffer, 0, length);
+                            remaining -= length;
+                        }
+                    }
+                    out.writeLong(crc.getValue());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, pack, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a pack file into an empty directory.
+     *
+     * @return name of the restored segments_N file.
+     */
+    static String read(HazelcastDirectory directory, Path pack) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream is = Files.newInputStream(pack);
+             DataInputStream in = new DataInputStream(
+                     new CheckedInputStream(new BufferedInputStream(is, IO_BUFFER_SIZE), crc))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a pack file: " + pack);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported pack file version " + version + ": " + pack);
+            }
+            in.readLong(); // generation
+            int numFiles = in.readInt();
+            String[] names = new String[numFiles];
+            long[] lengths = new long[numFiles];
+            for (int i = 0; i < numFiles; i++) {
+                names[i] = in.readUTF();
+                lengths[i] = in.readLong();
+            }
+            verify(crc, in, "file table", pack);
+            if (numFiles == 0 || !names[numFiles - 1].startsWith(IndexFileNames.SEGMENTS)) {
+                throw new IOException("segments file is not last in " + pack);
+            }
+
+            Map<HFileKey, HFile> batch = new HashMap<>();
+            Map<String, HFileHeader> headers = new HashMap<>();
+            long batchBytes = 0;
+            for (int i = 0; i < numFiles; i++) {
+                crc.reset();
+                if (directory.getStorageMode() == HazelcastDirectory.StorageMode.CHUNKED) {
+                    readOutput(directory, names[i], lengths[i], in);
+                } else {
+                    batch.put(directory.fileKey(names[i]), readFile(directory, lengths[i], in));
+                    headers.put(names[i], directory.newHeader(names[i], HFile.contiguousBlockSize(lengths[i]),
+                            HBlockCodec.NONE.getId()).withContents(lengths[i], crc.getValue()));
+                    batchBytes += lengths[i];
+                }
+                verify(crc, in, names[i], pack);
+                if (batchBytes >= RESTORE_BATCH_SIZE || (!batch.isEmpty() && i >= numFiles - 2)) {
+                    // the segments file is put on its own, after every other file
+                    directory.fileMap.putAll(batch);
+                    directory.headerMap.putAll(headers);
+                    for (Map.Entry<String, HFileHeader> header : headers.entrySet()) {
+                        directory.account(header.getValue(),
+                                batch.get(directory.fileKey(header.getKey())).ramBytesUsed());
+                    }
+                    batch.clear();
+                    headers.clear();
+                    batchBytes = 0;
+                }
+            }
+            if (in.read() != -1) {
+                throw new IOException("trailing data in " + pack);
+            }
+            return names[numFiles - 1];
+        }
+    }
+
+    private static HFile readFile(HazelcastDirectory directory, long length, DataInputStream in) throws IOException {
+        HFile file = new HFile(directory, HFile.contiguousBlockSize(length));
+        for (long position = 0; position < length; ) {
+            int blockLength = (int) Math.min(file.blockSize(), length - position);
+            in.readFully(file.addBuffer(blockLength));
+            position += blockLength;
+        }
+        file.setLength(length);
+        file.seal();
+        return file;
+    }
+
+    private static void readOutput(HazelcastDirectory directory, String name, long length, DataInputStream in)
+            throws IOException {
+        byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE, Math.max(1, length))];
+        try (IndexOutput out = directory.createOutput(name, new IOContext(new FlushInfo(0, length)))) {
+            for (long remaining = length; remaining > 0; ) {
+                int n = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, n);
+                out.writeBytes(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    private static void verify(CRC32 crc, DataInputStream in, String what, Path pack) throws IOException {
+        long actual = crc.getValue();
+        long expected;
+        try {
+            expected = in.readLong();
+        } catch (EOFException e) {
+            throw new IOException("truncated pack file: " + pack, e);
+        }
+        if (actual != expected) {
+            throw new IOException("checksum mismatch of " + what + " in " + pack);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Adds or drops a reference to stored contents, atomically on the member owning the {@link HContentRef}.
+ * <p>
+ * A processor created with a header registers the header's chunks as the contents if there are none yet,
+ * otherwise it adds one reference. It returns the reference as it was before, {@code null} if it stored the
+ * header's chunks, so the caller knows which chunks to read and whether it created the entry.
+ * <p>
+ * Other processors only change the references of stored contents and return the updated reference, so the
+ * caller knows when the chunks are no longer used by any file, or {@code null} if there are no such contents.
+ * Dropping the last reference removes the entry.
+ *
+ * @author Marza
+ */
+final class HRefProcessor extends AbstractEntryProcessor<String, HContentRef> implements IdentifiedDataSerializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int delta;
+    private HContentRef created;
+
+    HRefProcessor() {
+    }
+
+    /**
+     * @param delta number of references to add to stored contents, negative to drop.
+     */
+    HRefProcessor(int delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * @param header header of a file whose chunks are stored as the contents if there are none yet.
+     * @param refs   number of references of the contents if they are stored by this processor.
+     */
+    HRefProcessor(HFileHeader header, int refs) {
+        if (refs <= 0) {
+            throw new IllegalArgumentException("refs must be positive: " + refs);
+        }
+        this.delta = 1;
+        this.created = new HContentRef(header, refs);
+    }
+
+    @Override
+    public Object process(Map.Entry<String, HContentRef> entry) {
+        HContentRef previous = entry.getValue();
+        if (previous == null) {
+            if (created != null) {
+                entry.setValue(created);
+            }
+            return null;
+        }
+        HContentRef ref = previous.withRefs(previous.getRefs() + delta);
+        entry.setValue(ref.getRefs() > 0 ? ref : null);
+        return created != null ? previous : ref;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeInt(delta);
+        out.writeObject(created);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        delta = in.readInt();
+        created = in.readObject();
+    }
+
+    @Override
+    public int getFactoryId() {
+        return HFile.HazelcastDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getId() {
+        return HFile.HazelcastDataSerializableFactory.REF_PROCESSOR_TYPE;
+    }
+}
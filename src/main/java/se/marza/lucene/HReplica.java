@@ -0,0 +1,143 @@
+package se.marza.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hazelcast.core.Message;
+import com.hazelcast.core.MessageListener;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Near-real-time read replica of a {@link HazelcastDirectory}.
+ * <p>
+ * Instead of polling, the replica listens to the {@link HazelcastDirectory#getCommitTopic() commit topic}.
+ * For every new commit it prefetches the files it has not seen before and then refreshes its
+ * {@link SearcherManager}, which reopens with {@code DirectoryReader.openIfChanged}.
+ * Commits arriving while a refresh is running are coalesced into one refresh to the newest.
+ * A failed refresh is retried with a growing delay until it succeeds or a newer commit arrives.
+ *
+ * @author Marza
+ */
+public final class HReplica implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HReplica.class);
+    private static final long MIN_RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    private final HazelcastDirectory directory;
+    private final SearcherManager searcherManager;
+    private final ScheduledThreadPoolExecutor refresher;
+    private final AtomicReference<HCommit> latest = new AtomicReference<>();
+    private final String listenerId;
+    private volatile long generation;
+    private volatile Set<String> files;
+    // only used by the refresher thread
+    private long retryDelay;
+
+    /**
+     * @param directory       directory holding a committed index.
+     * @param searcherFactory factory for new searchers, or {@code null} for the default.
+     * @throws IOException if the index can not be opened.
+     */
+    public HReplica(HazelcastDirectory directory, SearcherFactory searcherFactory) throws IOException {
+        this.directory = directory;
+        SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+        this.generation = infos.getGeneration();
+        this.files = new HashSet<>(infos.files(true));
+        this.searcherManager = new SearcherManager(directory, searcherFactory);
+        this.refresher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "HReplica-" + directory.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // pending retries are dropped on close
+        refresher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // listen only once the state is complete, then catch up with commits made before subscribing
+        this.listenerId = directory.getCommitTopic().addMessageListener(new CommitListener());
+        boolean success = false;
+        try {
+            infos = SegmentInfos.readLatestCommit(directory);
+            if (infos.getGeneration() > generation) {
+                offer(new HCommit(infos.getGeneration(), infos.getSegmentsFileName(), infos.files(true)), 0);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(this);
+            }
+        }
+    }
+
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    /**
+     * @return generation of the newest commit this replica has refreshed to.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    private void refresh() {
+        HCommit commit = latest.getAndSet(null);
+        if (commit == null || commit.getGeneration() <= generation) {
+            return;
+        }
+        try {
+            Set<String> added = new HashSet<>(commit.getFiles());
+            added.removeAll(files);
+            directory.prefetch(added);
+            searcherManager.maybeRefreshBlocking();
+            files = new HashSet<>(commit.getFiles());
+            generation = commit.getGeneration();
+            retryDelay = 0;
+        } catch (IOException | RuntimeException e) {
+            retryDelay = Math.min(MAX_RETRY_DELAY_MS, Math.max(MIN_RETRY_DELAY_MS, 2 * retryDelay));
+            LOGGER.warn("failed to refresh {} to {}, retrying in {} ms", directory, commit, retryDelay, e);
+            // a newer commit offered meanwhile replaces this one
+            offer(commit, retryDelay);
+        }
+    }
+
+    private void offer(HCommit commit, long delayMillis) {
+        HCommit previous = latest.getAndAccumulate(commit,
+                (current, next) -> current == null || next.getGeneration() > current.getGeneration() ? next : current);
+        if (previous == null) {
+            try {
+                refresher.schedule(this::refresh, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        directory.getCommitTopic().removeMessageListener(listenerId);
+        refresher.shutdown();
+        try {
+            refresher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        searcherManager.close();
+    }
+
+    private final class CommitListener implements MessageListener<HCommit> {
+        @Override
+        public void onMessage(Message<HCommit> message) {
+            offer(message.getMessageObject(), 0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package se.marza.lucene;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * A logical index split into a fixed number of {@link HazelcastDirectory} shards in one cluster.
+ * <p>
+ * Every shard has its own cluster-wide write lock, so {@code IndexWriter}s for different shards
+ * can run in parallel on different members. Documents are routed to shards by id with
+ * {@link #shardFor(String)}, and {@link #openReader()} searches the latest commit of all shards.
+ *
+ * @author Marza
+ */
+public final class HShards implements Closeable {
+
+    private final String name;
+    private final HazelcastDirectory[] shards;
+
+    /**
+     * @param instance    Hazelcast member or client, set up with {@link HazelcastDirectory#configure}.
+     * @param name        name of the logical index.
+     * @param numShards   number of shards, must be the same every time the index is opened.
+     * @param storageMode how files are stored.
+     */
+    public HShards(HazelcastInstance instance, String name, int numShards, HazelcastDirectory.StorageMode storageMode) {
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("numShards must be positive: " + numShards);
+        }
+        IAtomicLong shardCount = instance.getAtomicLong(name + ".shards");
+        if (!shardCount.compareAndSet(0, numShards) && shardCount.get() != numShards) {
+            throw new IllegalStateException("index " + name + " has " + shardCount.get() + " shards, not " + numShards);
+        }
+        this.name = name;
+        this.shards = new HazelcastDirectory[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new HazelcastDirectory(instance, shardName(name, i), storageMode);
+        }
+    }
+
+    static String shardName(String name, int shard) {
+        return name + ".shard" + shard;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int numShards() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard shard number.
+     * @return directory holding the shard.
+     */
+    public HazelcastDirectory shard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @param id unique id of a document.
+     * @return number of the shard the document belongs to.
+     */
+    public int shardFor(String id) {
+        BytesRef bytes = new BytesRef(id);
+        return Math.floorMod(StringHelper.murmurhash3_x86_32(bytes, StringHelper.GOOD_FAST_HASH_SEED), shards.length);
+    }
+
+    /**
+     * Opens the latest commit of every shard that has one.
+     *
+     * @return reader over all shards, closing it closes the shard readers.
+     * @throws IOException if a shard can not be opened.
+     */
+    public MultiReader openReader() throws IOException {
+        List<IndexReader> readers = new ArrayList<>(shards.length);
+        boolean success = false;
+        try {
+            for (HazelcastDirectory shard : shards) {
+                if (DirectoryReader.indexExists(shard)) {
+                    readers.add(DirectoryReader.open(shard));
+                }
+            }
+            MultiReader reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+            success = true;
+            return reader;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(readers);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(shards);
+    }
+}
@@ -2,20 +2,56 @@ package se.marza.lucene;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.hazelcast.client.config.ClientConfig;
 import com.hazelcast.config.Config;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IAtomicLong;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.BaseDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.SingleInstanceLockFactory;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,125 +61,1102 @@ import org.slf4j.LoggerFactory;
 public class HazelcastDirectory extends BaseDirectory implements Accountable {
     private static final Logger LOGGER = LoggerFactory.getLogger(HazelcastDirectory.class);
     private static final String MAP_NAME = "hazelcastDirectory";
+    public static final int DEFAULT_BLOCK_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1024 * 1024;
+    // blocks are single map entries and compressed into arrays slightly larger than themselves
+    public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 64L * 1024 * 1024;
+    public static final long DEFAULT_READ_AHEAD_SIZE = 4L * 1024 * 1024;
+    /**
+     * Name of the executor running {@link #mergeOnDataOwner(int)}, its pool size bounds concurrent merges per member.
+     */
+    public static final String MERGE_EXECUTOR_NAME = "hazelcastDirectory.merges";
+    /**
+     * Name of the map holding the chunks of every index in {@link StorageMode#CHUNKED} mode.
+     */
+    public static final String CHUNK_MAP_NAME = "hazelcastDirectory.chunks";
+    /**
+     * Name of the map counting the files that share stored contents, see {@link HContentRef}.
+     */
+    public static final String CONTENT_MAP_NAME = "hazelcastDirectory.contents";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_READ_AHEAD_BLOCKS = 64;
+    private static final long PREFETCH_BATCH_SIZE = 8L * 1024 * 1024;
+    private static final LockFactory READ_ONLY_LOCK_FACTORY = new LockFactory() {
+        @Override
+        public Lock obtainLock(Directory dir, String lockName) {
+            throw new UnsupportedOperationException("read-only directory: " + dir);
+        }
+    };
+
+    /**
+     * How file contents are laid out in the cluster. In both modes every file also has a small
+     * {@link HFileHeader} entry, which answers {@link #listAll()} and {@link #fileLength(String)}.
+     */
+    public enum StorageMode {
+        /**
+         * Each file is a single {@link HFile} entry, keyed by its name so that an {@link HFileMapStore}
+         * keeps the files under their Lucene names. Renaming a file therefore moves its contents, which
+         * {@code IndexWriter} only does for small {@code pending_segments_N} files.
+         */
+        FILE,
+        /**
+         * Each file is one entry per chunk, so readers only fetch the chunks they touch.
+         * The chunks of all indexes are kept together, so copies made with {@link #copyFrom} share
+         * the chunks of files with the same contents, and renaming a file only moves its header.
+         */
+        CHUNKED
+    }
 
-    protected static IMap<String, HFile> fileMap;
+    private final HazelcastInstance instance;
+    protected final IMap<HFileKey, HFile> fileMap;
+    protected final IMap<String, HFileHeader> headerMap;
+    protected final IMap<HChunkKey, byte[]> chunkMap;
+    protected final IMap<String, HContentRef> contentMap;
+    private final ITopic<HCommit> commitTopic;
+    private final IAtomicLong generations;
     protected final AtomicLong sizeInBytes = new AtomicLong();
+    // bytes this instance added to sizeInBytes, by generation of the header of the file holding them
+    private final ConcurrentMap<Long, Long> accountedBytes = new ConcurrentHashMap<>();
+    final HCompressionStats compressionStats = new HCompressionStats();
+    final HMetrics metrics = new HMetrics();
+    private ObjectName mBeanName;
+    private final ConcurrentMap<String, HBlockCodec> codecs = new ConcurrentHashMap<>();
+    private final String name;
+    private final StorageMode storageMode;
+    private final boolean clearOnClose;
+    private final boolean readOnly;
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+    private volatile int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+    private volatile HBlockCache blockCache;
+    private volatile boolean offHeap;
+    private volatile long readAheadSize = DEFAULT_READ_AHEAD_SIZE;
+    private String headerListenerId;
 
     //@Value("${hazelcast.members}")
-    private String members = "127.0.0.1:8085";
+    private static final String MEMBERS = "127.0.0.1:8085";
 
     public HazelcastDirectory() {
-        // TODO: develop Hazelcast Lock Factory
-        super(new SingleInstanceLockFactory());
+        this(StorageMode.FILE);
+    }
 
-        Config config = new Config("lucene-hazelcastDirectory-1.0");
+    /**
+     * Starts a new Hazelcast member holding a single index, which is cleared on {@link #close()}.
+     * Use {@link HDirectories} to hold many indexes on one shared member.
+     *
+     * @param storageMode how files are stored.
+     */
+    public HazelcastDirectory(StorageMode storageMode) {
+        this(Hazelcast.newHazelcastInstance(newConfig()), MAP_NAME, storageMode, new SingleInstanceLockFactory(), true);
+    }
 
-        // near cache config
-        /*NearCacheConfig nearCacheConfig = new NearCacheConfig();
-        nearCacheConfig.setCacheLocalEntries(true);
-        nearCacheConfig.setInvalidateOnChange(true);
-        config.getMapConfig(MAP_NAME).setNearCacheConfig(nearCacheConfig);*/
-        //config.getMapConfig(MAP_NAME).setInMemoryFormat(InMemoryFormat.BINARY);
+    /**
+     * Opens the index with the given name on an existing Hazelcast instance, which must have been
+     * set up with {@link #configure(Config)}. Writers on different members are serialized by a
+     * cluster-wide {@link HazelcastLockFactory}. The index is kept in the cluster on {@link #close()}.
+     *
+     * @param instance    Hazelcast member or client.
+     * @param name        name of the index, prefix of the maps holding it.
+     * @param storageMode how files are stored, must be the same for all users of the index.
+     */
+    public HazelcastDirectory(HazelcastInstance instance, String name, StorageMode storageMode) {
+        this(instance, name, storageMode, new HazelcastLockFactory(instance), false);
+    }
 
-        // serialization
-        config.getSerializationConfig().addDataSerializableFactory(
-                HFile.HazelcastDataSerializableFactory.FACTORY_ID,
-                new HFile.HazelcastDataSerializableFactory());
+    /**
+     * Opens the index with the given name for searching only, typically from a Hazelcast client set up
+     * with {@link #configure(ClientConfig)}. A client does not own partitions, so query nodes can be
+     * added and removed without migrating data. Reads go through a near cache when one is configured,
+     * see {@link #addNearCaches(ClientConfig, String, int)}, and through the {@link #getBlockCache()
+     * block cache} in {@link StorageMode#CHUNKED} mode. Writes and locks throw
+     * {@link UnsupportedOperationException}.
+     *
+     * @param instance    Hazelcast client or member.
+     * @param name        name of the index.
+     * @param storageMode how files are stored, must be the same as for the writers of the index.
+     * @return read-only directory of the index.
+     */
+    public static HazelcastDirectory openReadOnly(HazelcastInstance instance, String name, StorageMode storageMode) {
+        return new HazelcastDirectory(instance, name, storageMode, READ_ONLY_LOCK_FACTORY, false, true);
+    }
+
+    private HazelcastDirectory(HazelcastInstance instance, String name, StorageMode storageMode,
+                               LockFactory lockFactory, boolean clearOnClose) {
+        this(instance, name, storageMode, lockFactory, clearOnClose, false);
+    }
+
+    private HazelcastDirectory(HazelcastInstance instance, String name, StorageMode storageMode,
+                               LockFactory lockFactory, boolean clearOnClose, boolean readOnly) {
+        super(lockFactory);
+        this.name = name;
+        this.storageMode = storageMode;
+        this.clearOnClose = clearOnClose;
+        this.readOnly = readOnly;
+        this.instance = instance;
+        fileMap = instance.getMap(name);
+        headerMap = instance.getMap(headerMapName(name));
+        chunkMap = instance.getMap(CHUNK_MAP_NAME);
+        contentMap = instance.getMap(CONTENT_MAP_NAME);
+        commitTopic = instance.getTopic(name + ".commits");
+        generations = instance.getAtomicLong(name + ".generations");
+
+        if (storageMode == StorageMode.CHUNKED) {
+            blockCache = new HBlockCache(DEFAULT_BLOCK_CACHE_SIZE);
+            headerListenerId = headerMap.addEntryListener(new HeaderListener(), false);
+        }
+    }
+
+    private static Config newConfig() {
+        Config config = configure(new Config("lucene-hazelcastDirectory-1.0"));
 
         // network config
         config.getNetworkConfig().setPort(8085);
         config.getNetworkConfig().setPortCount(2);
         config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
         config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true);
-        config.getNetworkConfig().getJoin().getTcpIpConfig().addMember(members);
+        config.getNetworkConfig().getJoin().getTcpIpConfig().addMember(MEMBERS);
 
         // group config
         config.getGroupConfig().setName("lucene-hazelcast");
         config.getGroupConfig().setPassword("password");
+        return config;
+    }
+
+    /**
+     * Registers what a Hazelcast member needs to hold {@link HazelcastDirectory} indexes.
+     *
+     * @param config member configuration.
+     * @return the given configuration.
+     */
+    public static Config configure(Config config) {
+        // serialization
+        config.getSerializationConfig().addDataSerializableFactory(
+                HFile.HazelcastDataSerializableFactory.FACTORY_ID,
+                new HFile.HazelcastDataSerializableFactory());
+        // stored values stay serialized, so members do not hold HFile object graphs on their heaps
+        config.getMapConfig(CHUNK_MAP_NAME).setInMemoryFormat(InMemoryFormat.BINARY);
+        config.getMapConfig(CONTENT_MAP_NAME).setInMemoryFormat(InMemoryFormat.BINARY);
+        return config;
+    }
+
+    /**
+     * Registers what a Hazelcast member needs to hold the {@link HazelcastDirectory} index with the given
+     * name. The maps of an index are named after it, so other maps of the member are left untouched.
+     *
+     * @param config member configuration.
+     * @param name   name of the index.
+     * @return the given configuration.
+     */
+    public static Config configure(Config config, String name) {
+        configure(config);
+        config.getMapConfig(name).setInMemoryFormat(InMemoryFormat.BINARY);
+        config.getMapConfig(headerMapName(name)).setInMemoryFormat(InMemoryFormat.BINARY);
+        return config;
+    }
+
+    /**
+     * Registers what a Hazelcast client needs to use {@link HazelcastDirectory} indexes.
+     *
+     * @param config client configuration.
+     * @return the given configuration.
+     */
+    public static ClientConfig configure(ClientConfig config) {
+        config.getSerializationConfig().addDataSerializableFactory(
+                HFile.HazelcastDataSerializableFactory.FACTORY_ID,
+                new HFile.HazelcastDataSerializableFactory());
+        return config;
+    }
+
+    /**
+     * Caches file headers, and in {@link StorageMode#FILE} mode whole files, of an index on the client.
+     * Files are immutable once written, entries are dropped when a file is deleted or overwritten.
+     *
+     * @param config   client configuration.
+     * @param name     name of the index.
+     * @param maxFiles maximum number of files cached, least recently used files are evicted first.
+     * @return the given configuration.
+     */
+    public static ClientConfig addNearCaches(ClientConfig config, String name, int maxFiles) {
+        if (maxFiles <= 0) {
+            throw new IllegalArgumentException("maxFiles must be positive: " + maxFiles);
+        }
+        // files are sealed after writing, so readers can share the deserialized objects
+        config.addNearCacheConfig(new NearCacheConfig(name)
+                .setInMemoryFormat(InMemoryFormat.OBJECT)
+                .setInvalidateOnChange(true)
+                .setEvictionPolicy("LRU")
+                .setMaxSize(maxFiles));
+        config.addNearCacheConfig(new NearCacheConfig(headerMapName(name))
+                .setInMemoryFormat(InMemoryFormat.OBJECT)
+                .setInvalidateOnChange(true)
+                .setEvictionPolicy("LRU")
+                .setMaxSize(maxFiles));
+        return config;
+    }
+
+    /**
+     * @return name of the index, prefix of the maps holding it.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * @return whether this directory was opened with {@link #openReadOnly}.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private void ensureWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("read-only directory: " + name);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize block size of small files, such as flushed segments and per-segment metadata.
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize > maxBlockSize) {
+            throw new IllegalArgumentException("blockSize must be in (0, " + maxBlockSize + "]: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * @param maxBlockSize upper bound for the block size of files written by large flushes and merges,
+     *                     at most {@link #MAX_BLOCK_SIZE}.
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        if (maxBlockSize < blockSize || maxBlockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("maxBlockSize must be in [" + blockSize + ", " + MAX_BLOCK_SIZE + "]: "
+                    + maxBlockSize);
+        }
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    public long getReadAheadSize() {
+        return readAheadSize;
+    }
+
+    /**
+     * In {@link StorageMode#CHUNKED} mode, inputs that read sequentially keep about this many bytes of
+     * upcoming chunks in flight with asynchronous reads. Inputs opened for merges or read once do so from
+     * the start, other inputs once they have crossed a few chunks in order. Chunks read ahead are put in the
+     * {@link #getBlockCache() block cache}, so without one nothing is read ahead.
+     *
+     * @param readAheadSize bytes read ahead per input, 0 to only fetch chunks when they are reached.
+     */
+    public void setReadAheadSize(long readAheadSize) {
+        if (readAheadSize < 0) {
+            throw new IllegalArgumentException("readAheadSize must not be negative: " + readAheadSize);
+        }
+        this.readAheadSize = readAheadSize;
+    }
 
-        HazelcastInstance instance = Hazelcast.newHazelcastInstance(config);
-        fileMap = instance.getMap(MAP_NAME);
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * In {@link StorageMode#FILE} mode, keeps the blocks of written and opened files in
+     * direct memory, see {@link HDirectFile}.
+     *
+     * @param offHeap whether new files are written to off-heap slabs.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * In {@link StorageMode#CHUNKED} mode, compresses the chunks of files with the given extension.
+     *
+     * @param extension file extension, such as {@code "fdt"}.
+     * @param codec     codec for new files, or {@code null} to store them uncompressed.
+     */
+    public void setCodec(String extension, HBlockCodec codec) {
+        if (codec == null || codec == HBlockCodec.NONE) {
+            codecs.remove(extension);
+        } else {
+            codecs.put(extension, codec);
+        }
+    }
+
+    /**
+     * @param name name of a new file.
+     * @return codec its chunks are compressed with.
+     */
+    protected HBlockCodec codec(String name) {
+        String extension = IndexFileNames.getExtension(name);
+        HBlockCodec codec = extension == null ? null : codecs.get(extension);
+        return codec == null ? HBlockCodec.NONE : codec;
+    }
+
+    /**
+     * @return codecs set with {@link #setCodec}, by file extension.
+     */
+    Map<String, HBlockCodec> codecs() {
+        return new HashMap<>(codecs);
+    }
+
+    public HCompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * @return call counts, latencies and traffic of this directory, see {@link #registerMBean()}.
+     */
+    public HMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the {@link #getMetrics() metrics} of this directory with the platform MBean server
+     * under {@code se.marza.lucene:type=HazelcastDirectory,name=<name>}. Unregistered on {@link #close()}.
+     *
+     * @return name of the registered MBean.
+     * @throws JMException if the MBean can not be registered, e.g. when another directory with the
+     *                     same name already registered one.
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+        ensureOpen();
+        if (mBeanName == null) {
+            ObjectName objectName = new ObjectName("se.marza.lucene:type=HazelcastDirectory,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics.newMBean(), objectName);
+            mBeanName = objectName;
+        }
+        return mBeanName;
+    }
+
+    public HBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Replaces the member-local cache of chunks read in {@link StorageMode#CHUNKED} mode.
+     * A cache can be shared by directories with different names. In {@link StorageMode#FILE} mode
+     * files are fetched whole on every open and not cached here, use a near cache for that, see
+     * {@link #addNearCaches(ClientConfig, String, int)}.
+     *
+     * @param blockCache the new cache, or {@code null} to read every chunk from the cluster.
+     */
+    public void setBlockCache(HBlockCache blockCache) {
+        HBlockCache previous = this.blockCache;
+        this.blockCache = blockCache;
+        if (previous != null && previous != blockCache) {
+            previous.invalidatePrefix(cacheName(""));
+        }
+    }
+
+    /**
+     * Chooses the block size of a new file from the expected size of the segment it belongs to.
+     *
+     * @param name    name of the file.
+     * @param context context the file is written in.
+     * @return block size between {@link #getBlockSize()} and {@link #getMaxBlockSize()}.
+     */
+    protected int blockSize(String name, IOContext context) {
+        long estimatedSegmentSize;
+        if (context.context == IOContext.Context.MERGE && context.mergeInfo != null) {
+            estimatedSegmentSize = context.mergeInfo.estimatedMergeBytes;
+        } else if (context.context == IOContext.Context.FLUSH && context.flushInfo != null) {
+            estimatedSegmentSize = context.flushInfo.estimatedSegmentSize;
+        } else {
+            return blockSize;
+        }
+        if (isMetadataFile(name)) {
+            return blockSize;
+        }
+        // the bulk of a segment is spread over a handful of files, aim for tens of blocks per file
+        long target = Long.highestOneBit(Math.max(1L, estimatedSegmentSize / 64));
+        return (int) Math.max(blockSize, Math.min(maxBlockSize, target));
+    }
+
+    private static boolean isMetadataFile(String name) {
+        if (name.startsWith(IndexFileNames.SEGMENTS) || name.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+            return true;
+        }
+        String extension = IndexFileNames.getExtension(name);
+        if (extension == null) {
+            return false;
+        }
+        switch (extension) {
+            case "si":
+            case "fnm":
+            case "dvm":
+            case "nvm":
+            case "tip":
+            case "fdx":
+            case "liv":
+            case "cfe":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param name name of an index.
+     * @return name of the map holding the {@link HFileHeader}s of the index.
+     */
+    public static String headerMapName(String name) {
+        return name + ".headers";
     }
 
     @Override
     public String[] listAll() throws IOException {
         ensureOpen();
-        return fileMap.keySet().toArray(new String[fileMap.size()]);
+        return headerMap.keySet().toArray(new String[0]);
     }
 
     @Override
     public void deleteFile(String name) throws IOException {
-        //LOGGER.debug("deleteFile={}", name);
+        long start = System.nanoTime();
+        try {
+            doDeleteFile(name);
+        } finally {
+            metrics.record(HMetrics.Op.DELETE_FILE, start);
+        }
+    }
+
+    private void doDeleteFile(String name) throws IOException {
         ensureOpen();
-        HFile file = fileMap.remove(name);
-        if (file != null) {
-            file.directory = null;
-            sizeInBytes.addAndGet(-file.sizeInBytes);
-        } else {
+        ensureWritable();
+        HFileHeader header = headerMap.remove(name);
+        if (header == null) {
             throw new FileNotFoundException(name);
         }
+        deleteContents(name, header);
     }
 
     @Override
     public long fileLength(String name) throws IOException {
-        //LOGGER.debug("fileLength={}", name);
+        long start = System.nanoTime();
+        try {
+            return doFileLength(name);
+        } finally {
+            metrics.record(HMetrics.Op.FILE_LENGTH, start);
+        }
+    }
+
+    private long doFileLength(String name) throws IOException {
         ensureOpen();
-        HFile file = fileMap.get(name);
-        if (file == null) {
+        return getHeader(name).getLength();
+    }
+
+    /**
+     * @param name name of a file.
+     * @return metadata of the file, without fetching its contents.
+     * @throws FileNotFoundException if the file does not exist.
+     */
+    public HFileHeader getHeader(String name) throws IOException {
+        ensureOpen();
+        HFileHeader header = headerMap.get(name);
+        if (header == null) {
             throw new FileNotFoundException(name);
         }
-        return file.getLength();
+        return header;
     }
 
     @Override
     public IndexOutput createOutput(String name, IOContext context) throws IOException {
-        //LOGGER.debug("createOutput={}", name);
+        long start = System.nanoTime();
+        try {
+            return doCreateOutput(name, context);
+        } finally {
+            metrics.record(HMetrics.Op.CREATE_OUTPUT, start);
+        }
+    }
+
+    private IndexOutput doCreateOutput(String name, IOContext context) throws IOException {
+        return doCreateOutput(name, context, null);
+    }
+
+    /**
+     * @param contentKey key of the contents in {@link StorageMode#CHUNKED} mode if they are known in advance.
+     */
+    private IndexOutput doCreateOutput(String name, IOContext context, String contentKey) throws IOException {
         ensureOpen();
-        HFile file = new HFile(this);
-        HFile existing = fileMap.remove(name);
+        ensureWritable();
+        HFileHeader existing = headerMap.remove(name);
         if (existing != null) {
-            sizeInBytes.addAndGet(-existing.sizeInBytes);
-            existing.directory = null;
+            deleteContents(name, existing);
+        }
+        int fileBlockSize = blockSize(name, context);
+        if (storageMode == StorageMode.CHUNKED) {
+            HFileHeader header = newHeader(name, fileBlockSize, codec(name).getId());
+            headerMap.set(name, header);
+            return new HChunkedOutputStream(name, header, this, contentKey);
         }
-        fileMap.set(name, file);
-        return new HOutputStream(name, file);
+        HFileHeader header = newHeader(name, fileBlockSize, HBlockCodec.NONE.getId());
+        headerMap.set(name, header);
+        if (offHeap) {
+            return new HDirectOutputStream(name, new HDirectFile(this, fileBlockSize), header);
+        }
+        return new HOutputStream(name, new HFile(this, fileBlockSize), header);
+    }
+
+    /**
+     * @return header of a new, empty file.
+     */
+    HFileHeader newHeader(String file, int blockSize, int codecId) {
+        return new HFileHeader(ThreadLocalRandom.current().nextLong(), 0, blockSize, codecId,
+                HFileHeader.UNKNOWN_CHECKSUM, generations.incrementAndGet(), HFileKey.partitionKey(name, file));
+    }
+
+    /**
+     * @param file name of a file.
+     * @return key of the file in {@link StorageMode#FILE} mode.
+     */
+    HFileKey fileKey(String file) {
+        return new HFileKey(name, file);
     }
 
     @Override
     public void sync(Collection<String> names) throws IOException {
-        //LOGGER.debug("sync=[{}]", names);
+        // files are stored in the cluster when their outputs are closed
     }
 
     @Override
     public IndexInput openInput(String name, IOContext context) throws IOException {
-        //LOGGER.debug("createInput={}", name);
+        long start = System.nanoTime();
+        try {
+            return doOpenInput(name, context);
+        } finally {
+            metrics.record(HMetrics.Op.OPEN_INPUT, start);
+        }
+    }
+
+    private IndexInput doOpenInput(String name, IOContext context) throws IOException {
         ensureOpen();
-        HFile file = fileMap.get(name);
+        if (storageMode == StorageMode.CHUNKED) {
+            HFileHeader header = headerMap.get(name);
+            if (header == null) {
+                throw new FileNotFoundException(name);
+            }
+            HInputStream input = new HInputStream(name, new HChunkedFile(name, header, this), header.getLength(), metrics);
+            long readAhead = readAheadSize;
+            if (readAhead > 0 && blockCache != null) {
+                input.setReadAhead((int) Math.min(MAX_READ_AHEAD_BLOCKS, Math.max(1, readAhead / header.getChunkSize())),
+                        context.context == IOContext.Context.MERGE || context.readOnce);
+            }
+            return input;
+        }
+        HFile file = fetchFile(name);
         if (file == null) {
             throw new FileNotFoundException(name);
         }
-        return new HInputStream(file, name);
+        if (file instanceof HDirectFile) {
+            return new HDirectInputStream(name, (HDirectFile) file, file.getLength(), metrics);
+        }
+        return new HInputStream(name, file, file.getLength(), metrics);
     }
 
     @Override
     public void close() throws IOException {
-        //LOGGER.debug("close");
         isOpen = false;
-        fileMap.clear();
+        if (headerListenerId != null) {
+            headerMap.removeEntryListener(headerListenerId);
+        }
+        if (blockCache != null) {
+            blockCache.invalidatePrefix(cacheName(""));
+        }
+        unregisterMBean();
+        if (clearOnClose) {
+            deleteAllContents();
+            fileMap.clear();
+            headerMap.clear();
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (mBeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mBeanName);
+            } catch (JMException e) {
+                LOGGER.warn("failed to unregister {}", mBeanName, e);
+            }
+            mBeanName = null;
+        }
+    }
+
+    /**
+     * Closes this directory and removes the whole index from the cluster. Outputs should be closed first,
+     * chunks of files that are still being written are not removed.
+     */
+    public void destroy() throws IOException {
+        ensureWritable();
+        close();
+        deleteAllContents();
+        fileMap.destroy();
+        headerMap.destroy();
+        commitTopic.destroy();
+        generations.destroy();
+    }
+
+    /**
+     * Drops the contents of every file. Chunks are kept with those of other indexes, so they are
+     * removed file by file.
+     */
+    private void deleteAllContents() {
+        if (storageMode == StorageMode.CHUNKED) {
+            for (Map.Entry<String, HFileHeader> entry : headerMap.entrySet()) {
+                deleteContents(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * In {@link StorageMode#CHUNKED} mode, the copy of a file of a directory on the same Hazelcast instance
+     * shares its chunks, no chunk moves. Other files are read once for their digest and only sent to the
+     * cluster if no index there has a file with the same contents yet.
+     */
+    @Override
+    public void copyFrom(Directory from, String src, String dest, IOContext context) throws IOException {
+        if (storageMode != StorageMode.CHUNKED) {
+            super.copyFrom(from, src, dest, context);
+            return;
+        }
+        ensureOpen();
+        ensureWritable();
+        Directory source = FilterDirectory.unwrap(from);
+        if (source instanceof HazelcastDirectory && ((HazelcastDirectory) source).sharesChunksWith(this)) {
+            HazelcastDirectory directory = (HazelcastDirectory) source;
+            HFileHeader header = directory.getHeader(src);
+            HFileHeader copy = share(directory, src, header, dest);
+            if (copy != null) {
+                publishCopy(dest, copy);
+                return;
+            }
+        }
+        copyContents(from, src, dest, context);
+    }
+
+    private boolean sharesChunksWith(HazelcastDirectory other) {
+        return storageMode == StorageMode.CHUNKED && other.storageMode == StorageMode.CHUNKED
+                && instance == other.instance;
+    }
+
+    /**
+     * Adds a reference to the contents of a file of a directory sharing chunks with this one.
+     *
+     * @return header of the copy, {@code null} if the file was deleted meanwhile.
+     */
+    private HFileHeader share(HazelcastDirectory source, String src, HFileHeader header, String dest) {
+        String contentKey = header.getContentKey();
+        HContentRef ref;
+        if (contentKey != null) {
+            ref = (HContentRef) contentMap.executeOnKey(contentKey, new HRefProcessor(1));
+            if (ref == null) {
+                return null;
+            }
+        } else {
+            // first copy: the source file holds one reference and the copy another, once its header has the key
+            contentKey = "id:" + Long.toHexString(header.getFileId());
+            HContentRef previous = (HContentRef) contentMap.executeOnKey(contentKey, new HRefProcessor(header, 2));
+            ref = previous != null ? previous : new HContentRef(header, 2);
+            if (!source.headerMap.replace(src, header, header.withContentKey(contentKey, ref))) {
+                HFileHeader current = source.headerMap.get(src);
+                if (current == null || !contentKey.equals(current.getContentKey())) {
+                    // deleted or overwritten without dropping a reference, the chunks are gone
+                    HContentRef left = (HContentRef) contentMap.executeOnKey(contentKey,
+                            new HRefProcessor(previous == null ? -2 : -1));
+                    if (left == null || left.getRefs() <= 0) {
+                        deleteChunks(header);
+                    }
+                    return null;
+                }
+            }
+        }
+        return newHeader(dest, ref.getChunkSize(), ref.getCodecId())
+                .withContents(header.getLength(), header.getChecksum())
+                .withContentKey(contentKey, ref);
+    }
+
+    /**
+     * Copies a file of another directory, sending its contents only if they are not stored yet.
+     */
+    private void copyContents(Directory from, String src, String dest, IOContext context) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        CRC32 crc = new CRC32();
+        long length;
+        try (IndexInput in = from.openInput(src, IOContext.READONCE)) {
+            length = in.length();
+            byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length))];
+            for (long remaining = length; remaining > 0; ) {
+                int n = (int) Math.min(buffer.length, remaining);
+                in.readBytes(buffer, 0, n);
+                digest.update(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        String contentKey = toHex(digest.digest());
+        HContentRef ref = (HContentRef) contentMap.executeOnKey(contentKey, new HRefProcessor(1));
+        if (ref != null) {
+            publishCopy(dest, newHeader(dest, ref.getChunkSize(), ref.getCodecId())
+                    .withContents(length, crc.getValue())
+                    .withContentKey(contentKey, ref));
+            return;
+        }
+        boolean success = false;
+        try (IndexInput in = from.openInput(src, context);
+             IndexOutput out = doCreateOutput(dest, context, contentKey)) {
+            out.copyBytes(in, in.length());
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.deleteFilesIgnoringExceptions(this, dest);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void publishCopy(String dest, HFileHeader header) {
+        HFileHeader replaced = headerMap.put(dest, header);
+        if (replaced != null) {
+            deleteContents(dest, replaced);
+        }
     }
 
     @Override
     public void renameFile(String source, String dest) throws IOException {
-        //LOGGER.debug("renameFile={}->{}", source, dest);
+        long start = System.nanoTime();
+        try {
+            doRenameFile(source, dest);
+        } finally {
+            metrics.record(HMetrics.Op.RENAME_FILE, start);
+        }
+    }
+
+    private void doRenameFile(String source, String dest) throws IOException {
         ensureOpen();
-        HFile file = fileMap.get(source);
-        if (file == null) {
-            throw new FileNotFoundException(source);
+        ensureWritable();
+        HFileHeader header = getHeader(source);
+        HFileHeader replaced = headerMap.remove(dest);
+        if (replaced != null) {
+            deleteContents(dest, replaced);
+        }
+        if (storageMode == StorageMode.CHUNKED) {
+            // the chunks belong to the contents, not to the name
+            headerMap.set(dest, header);
+            headerMap.delete(source);
+            invalidate(source);
+        } else {
+            // the contents are stored under the file name, see StorageMode.FILE
+            HFile file = fetchFile(source);
+            if (file == null) {
+                throw new FileNotFoundException(source);
+            }
+            fileMap.set(fileKey(dest), file);
+            headerMap.set(dest, header.withPartitionKey(HFileKey.partitionKey(name, dest)));
+            headerMap.delete(source);
+            fileMap.delete(fileKey(source));
+        }
+        // IndexWriter commits by renaming pending_segments_N to segments_N
+        if (dest.startsWith(IndexFileNames.SEGMENTS + "_")) {
+            publishCommit(dest);
+        }
+    }
+
+    private HFile fetchFile(String name) {
+        long start = System.nanoTime();
+        HFile file = fileMap.get(fileKey(name));
+        metrics.fetched(start, file == null ? 0 : file.getLength());
+        return file;
+    }
+
+    private void publishCommit(String segmentsFileName) throws IOException {
+        SegmentInfos infos = SegmentInfos.readCommit(this, segmentsFileName);
+        HCommit commit = new HCommit(infos.getGeneration(), segmentsFileName, infos.files(true));
+        try {
+            commitTopic.publish(commit);
+        } catch (RuntimeException e) {
+            // the commit itself succeeded, replicas will pick it up with the next one
+            LOGGER.warn("failed to publish {} of {}", commit, name, e);
+        }
+    }
+
+    /**
+     * @return topic on which every commit of this index is published, see {@link HReplica}.
+     */
+    public ITopic<HCommit> getCommitTopic() {
+        return commitTopic;
+    }
+
+    /**
+     * In {@link StorageMode#CHUNKED} mode, loads all chunks of the given files into the block cache,
+     * fetching many chunks per round trip. In {@link StorageMode#FILE} mode, where files are always
+     * fetched whole, makes the members owning the files load them from their map store, if any.
+     *
+     * @param names names of files, missing files are skipped.
+     * @throws IOException if a chunk can not be fetched.
+     */
+    public void prefetch(Collection<String> names) throws IOException {
+        ensureOpen();
+        if (storageMode == StorageMode.FILE) {
+            Set<HFileKey> keys = new HashSet<>();
+            for (String file : names) {
+                keys.add(fileKey(file));
+            }
+            fileMap.executeOnKeys(keys, new HLoadProcessor());
+            return;
+        }
+        if (blockCache == null) {
+            return;
+        }
+        for (String file : names) {
+            HFileHeader header = headerMap.get(file);
+            if (header != null) {
+                new HChunkedFile(file, header, this).prefetch(PREFETCH_BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Writes the latest commit to a single pack file, see {@link #restore(Path)}. If a newer commit
+     * deletes a file while it is written, the newer commit is written instead.
+     *
+     * @param pack file to write, replaced atomically.
+     * @return generation of the written commit.
+     * @throws IOException if the pack file can not be written.
+     */
+    public long snapshot(Path pack) throws IOException {
+        ensureOpen();
+        while (true) {
+            SegmentInfos infos = SegmentInfos.readLatestCommit(this);
+            try {
+                HPackFile.write(this, infos.getGeneration(), infos.files(true), pack);
+                return infos.getGeneration();
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                if (SegmentInfos.getLastCommitGeneration(this) == infos.getGeneration()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the given commit to a single pack file. The commit must not be deleted while it is
+     * written, e.g. by holding it with a {@link org.apache.lucene.index.SnapshotDeletionPolicy}.
+     *
+     * @param commit commit of this directory.
+     * @param pack   file to write, replaced atomically.
+     * @throws IOException if the pack file can not be written.
+     */
+    public void snapshot(IndexCommit commit, Path pack) throws IOException {
+        ensureOpen();
+        if (commit.getDirectory() != this) {
+            throw new IllegalArgumentException("commit of another directory: " + commit);
+        }
+        HPackFile.write(this, commit.getGeneration(), commit.getFileNames(), pack);
+    }
+
+    /**
+     * Loads a pack file written by {@link #snapshot(Path)} into this directory. Files are read
+     * sequentially and put in large batches, the segments_N file last.
+     *
+     * @param pack file to read.
+     * @throws IOException if the pack file can not be read or is corrupt.
+     * @throws IllegalStateException if the directory is not empty.
+     */
+    public void restore(Path pack) throws IOException {
+        ensureOpen();
+        ensureWritable();
+        if (listAll().length != 0) {
+            throw new IllegalStateException("directory is not empty: " + name);
+        }
+        publishCommit(HPackFile.read(this, pack));
+    }
+
+    /**
+     * Loads every file of the latest commit in the background. In {@link StorageMode#FILE} mode the
+     * files are loaded from the map store by the members owning them, which matters when the store
+     * only loads part of the index on startup, see {@link HFileMapStore.InitialLoad}. In
+     * {@link StorageMode#CHUNKED} mode the files are prefetched into the block cache.
+     * <p>
+     * The directory can be used while this runs, files not loaded yet are loaded on first access.
+     *
+     * @return completes when all files are loaded.
+     */
+    public CompletableFuture<Void> warmUp() {
+        ensureOpen();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                prefetch(SegmentInfos.readLatestCommit(this).files(true));
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "HazelcastDirectory-warmUp-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    private void deleteContents(String name, HFileHeader header) {
+        if (storageMode == StorageMode.CHUNKED) {
+            if (release(header)) {
+                deleteChunks(header);
+            }
+            invalidate(name);
+        } else {
+            fileMap.delete(fileKey(name));
+        }
+        unaccount(header);
+    }
+
+    /**
+     * Adds the bytes of a file written through this instance to {@link #ramBytesUsed()}.
+     */
+    void account(HFileHeader header, long bytes) {
+        accountedBytes.merge(header.getGeneration(), bytes, Long::sum);
+        sizeInBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Takes the bytes of a deleted file off {@link #ramBytesUsed()}, if they were added by this instance.
+     * Files written by other instances or loaded from a map store were never added.
+     */
+    private void unaccount(HFileHeader header) {
+        Long bytes = accountedBytes.remove(header.getGeneration());
+        if (bytes != null) {
+            sizeInBytes.addAndGet(-bytes);
         }
-        fileMap.set(dest, file);
-        fileMap.remove(source);
     }
 
+    /**
+     * Drops the reference of a deleted file to its contents.
+     *
+     * @return whether no other file has the same contents.
+     */
+    private boolean release(HFileHeader header) {
+        if (header.getContentKey() == null) {
+            return true;
+        }
+        HContentRef ref = (HContentRef) contentMap.executeOnKey(header.getContentKey(), new HRefProcessor(-1));
+        return ref == null || ref.getRefs() <= 0;
+    }
+
+    void deleteChunks(HFileHeader header) {
+        int numChunks = header.numChunks();
+        for (int i = 0; i < numChunks; i++) {
+            chunkMap.delete(header.chunkKey(i));
+        }
+    }
+
+    private void invalidate(String name) {
+        HBlockCache cache = blockCache;
+        if (cache != null) {
+            cache.invalidate(cacheName(name));
+        }
+    }
+
+    /**
+     * @param file name of a file.
+     * @return name of the file in a {@link HBlockCache} that may be shared with other directories.
+     */
+    String cacheName(String file) {
+        return this.name + '/' + file;
+    }
+
+    /**
+     * Merges the segments of this index on the member that owns most of its bytes, so that segments are
+     * read there instead of being pulled to this JVM. The merge takes the write lock of the index, so it
+     * must run while no {@code IndexWriter} is open on it, e.g. between indexing sessions of a writer that
+     * defers merges with its merge policy.
+     * <p>
+     * The merging member writes with the block sizes, codecs, off-heap and read-ahead settings of this
+     * directory. Codecs other than the built-in ones must be {@link HBlockCodec#register registered} there too.
+     *
+     * @param maxSegments number of segments to force merge down to, 0 to run the merges the default
+     *                    merge policy selects.
+     * @return number of segments after merging, fails with a
+     * {@link org.apache.lucene.store.LockObtainFailedException} while the index is being written.
+     */
+    public Future<Integer> mergeOnDataOwner(int maxSegments) {
+        ensureOpen();
+        ensureWritable();
+        if (maxSegments < 0) {
+            throw new IllegalArgumentException("maxSegments must not be negative: " + maxSegments);
+        }
+        return instance.getExecutorService(MERGE_EXECUTOR_NAME)
+                .submitToMember(new HMergeTask(this, maxSegments), getDataOwner());
+    }
+
+    /**
+     * @return member owning the partitions that hold most bytes of this index.
+     */
+    public Member getDataOwner() {
+        ensureOpen();
+        PartitionService partitions = instance.getPartitionService();
+        Map<Member, Long> bytes = new HashMap<>();
+        for (Map.Entry<String, HFileHeader> entry : headerMap.entrySet()) {
+            HFileHeader header = entry.getValue();
+            // all chunks of a file share the partition of its segment
+            Object key = storageMode == StorageMode.CHUNKED ? header.chunkKey(0) : fileKey(entry.getKey());
+            Member owner = partitions.getPartition(key).getOwner();
+            if (owner != null) {
+                bytes.merge(owner, header.getLength(), Long::sum);
+            }
+        }
+        Member dataOwner = null;
+        long most = -1;
+        for (Map.Entry<Member, Long> entry : bytes.entrySet()) {
+            if (entry.getValue() > most) {
+                dataOwner = entry.getKey();
+                most = entry.getValue();
+            }
+        }
+        return dataOwner != null ? dataOwner : instance.getCluster().getMembers().iterator().next();
+    }
+
+    /**
+     * @return total length of the files of this index in the cluster, written by any member.
+     */
+    public long getStoredBytes() {
+        ensureOpen();
+        long total = 0;
+        for (HFileHeader header : headerMap.values()) {
+            total += header.getLength();
+        }
+        return total;
+    }
+
+    boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Bytes of the blocks written through this directory instance that have not been deleted since.
+     */
     @Override
     public long ramBytesUsed() {
         ensureOpen();
@@ -152,6 +1165,33 @@ public class HazelcastDirectory extends BaseDirectory implements Accountable {
 
     @Override
     public Collection<Accountable> getChildResources() {
-        return Accountables.namedAccountables("file", fileMap);
+        Map<String, HFile> files = new HashMap<>();
+        for (Map.Entry<HFileKey, HFile> entry : fileMap.entrySet()) {
+            files.put(entry.getKey().getName(), entry.getValue());
+        }
+        return Accountables.namedAccountables("file", files);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(name=" + name + ", storageMode=" + storageMode + ")";
+    }
+
+    /**
+     * Drops cached chunks of files that were deleted by any member. Overwritten files get a new file id,
+     * so their old chunks can not be read anymore and are left to age out of the cache.
+     */
+    private final class HeaderListener implements EntryRemovedListener<String, HFileHeader>,
+            EntryEvictedListener<String, HFileHeader> {
+
+        @Override
+        public void entryRemoved(EntryEvent<String, HFileHeader> event) {
+            invalidate(event.getKey());
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<String, HFileHeader> event) {
+            invalidate(event.getKey());
+        }
     }
 }
\ No newline at end of file
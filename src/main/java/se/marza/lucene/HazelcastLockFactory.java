@@ -0,0 +1,80 @@
+package se.marza.lucene;
+
+import java.io.IOException;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ISemaphore;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockFactory;
+import org.apache.lucene.store.LockObtainFailedException;
+
+/**
+ * Cluster-wide {@link LockFactory}, so at most one {@code IndexWriter} in the cluster writes an index.
+ * <p>
+ * Each lock is a single-permit {@link ISemaphore}. Unlike an {@code ILock} it is not owned by a thread,
+ * so it can be released by another thread than the one that obtained it, and Hazelcast gives the
+ * permit back when the member holding it leaves the cluster.
+ *
+ * @author Marza
+ */
+public final class HazelcastLockFactory extends LockFactory {
+
+    private final HazelcastInstance instance;
+
+    public HazelcastLockFactory(HazelcastInstance instance) {
+        this.instance = instance;
+    }
+
+    @Override
+    public Lock obtainLock(Directory dir, String lockName) throws IOException {
+        String name = lockName(dir, lockName);
+        ISemaphore semaphore = instance.getSemaphore(name);
+        semaphore.init(1);
+        if (!semaphore.tryAcquire()) {
+            throw new LockObtainFailedException("Lock held by another writer in the cluster: " + name);
+        }
+        return new HazelcastLock(name, semaphore);
+    }
+
+    private static String lockName(Directory dir, String lockName) {
+        String prefix = dir instanceof HazelcastDirectory ? ((HazelcastDirectory) dir).getName() : dir.toString();
+        return "lucene-lock/" + prefix + "/" + lockName;
+    }
+
+    private static final class HazelcastLock extends Lock {
+        private final String name;
+        private final ISemaphore semaphore;
+        private volatile boolean closed;
+
+        HazelcastLock(String name, ISemaphore semaphore) {
+            this.name = name;
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void ensureValid() throws IOException {
+            if (closed) {
+                throw new AlreadyClosedException("Lock instance already released: " + this);
+            }
+            if (semaphore.availablePermits() != 0) {
+                throw new AlreadyClosedException("Lock released by someone else: " + this);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            semaphore.release();
+        }
+
+        @Override
+        public String toString() {
+            return "HazelcastLock(" + name + ")";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.google.common.cache.CacheStats;
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Reads {@link HazelcastDirectory.StorageMode#CHUNKED} files through a {@link HBlockCache}.
+ *
+ * @author Marza
+ */
+public class HBlockCacheTest {
+    private static final int CHUNK_SIZE = 64;
+    private static final int CHUNKS = 10;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private HBlockCache cache;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = open();
+        cache = new HBlockCache(1024 * 1024);
+        directory.setBlockCache(cache);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void repeatedReadsHit() throws IOException {
+        byte[] data = write("file", 1);
+        assertArrayEquals(data, read("file"));
+        CacheStats first = cache.stats();
+        assertEquals(CHUNKS, first.missCount());
+        assertEquals(CHUNKS * CHUNK_SIZE, cache.ramBytesUsed());
+
+        assertArrayEquals(data, read("file"));
+        CacheStats second = cache.stats().minus(first);
+        assertEquals(0, second.missCount());
+        assertEquals(CHUNKS, second.hitCount());
+    }
+
+    @Test
+    public void deleteInvalidates() throws IOException {
+        write("file", 1);
+        read("file");
+        directory.deleteFile("file");
+        assertEquals(0, cache.ramBytesUsed());
+    }
+
+    @Test
+    public void overwriteInvalidates() throws IOException {
+        write("file", 1);
+        read("file");
+        byte[] data = write("file", 2);
+        assertEquals(0, cache.ramBytesUsed());
+        assertArrayEquals(data, read("file"));
+        assertEquals(CHUNKS * CHUNK_SIZE, cache.ramBytesUsed());
+    }
+
+    @Test
+    public void deleteByOtherDirectoryInvalidates() throws Exception {
+        write("file", 1);
+        read("file");
+        HazelcastDirectory other = open();
+        try {
+            other.deleteFile("file");
+        } finally {
+            other.close();
+        }
+        // the other directory's delete arrives as a map event
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cache.ramBytesUsed() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.ramBytesUsed());
+    }
+
+    @Test
+    public void sizeIsBounded() throws IOException {
+        cache = new HBlockCache(4 * CHUNK_SIZE);
+        directory.setBlockCache(cache);
+        byte[] data = write("file", 1);
+        assertArrayEquals(data, read("file"));
+        assertTrue(cache.ramBytesUsed() <= 4 * CHUNK_SIZE);
+        assertTrue(cache.stats().evictionCount() > 0);
+    }
+
+    private HazelcastDirectory open() {
+        HazelcastDirectory opened = new HazelcastDirectory(instance, "cached", HazelcastDirectory.StorageMode.CHUNKED);
+        opened.setBlockSize(CHUNK_SIZE);
+        // only blocks read by the test are cached
+        opened.setReadAheadSize(0);
+        return opened;
+    }
+
+    private byte[] write(String name, long seed) throws IOException {
+        byte[] data = new byte[CHUNKS * CHUNK_SIZE];
+        new Random(seed).nextBytes(data);
+        try (IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+        }
+        return data;
+    }
+
+    private byte[] read(String name) throws IOException {
+        try (IndexInput in = directory.openInput(name, IOContext.DEFAULT)) {
+            byte[] data = new byte[(int) in.length()];
+            in.readBytes(data, 0, data.length);
+            return data;
+        }
+    }
+}
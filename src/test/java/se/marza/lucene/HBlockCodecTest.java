@@ -0,0 +1,114 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Writes compressed files through a directory and reads them back.
+ *
+ * @author Marza
+ */
+public class HBlockCodecTest {
+    private static final int CHUNK_SIZE = 4096;
+    private static final HBlockCodec[] CODECS = {HBlockCodec.NONE, HBlockCodec.LZ4, HBlockCodec.DEFLATE};
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private IMap<HChunkKey, byte[]> chunks;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "codecs", HazelcastDirectory.StorageMode.CHUNKED);
+        directory.setBlockSize(CHUNK_SIZE);
+        chunks = instance.getMap(HazelcastDirectory.CHUNK_MAP_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void roundTripThroughDirectory() throws IOException {
+        byte[] text = new byte[10 * CHUNK_SIZE + 17];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        byte[] random = new byte[text.length];
+        new Random(1).nextBytes(random);
+
+        for (HBlockCodec codec : CODECS) {
+            directory.setCodec("fdt", codec);
+            write(codec + "-text.fdt", text);
+            write(codec + "-random.fdt", random);
+            assertArrayEquals(text, read(codec + "-text.fdt"));
+            assertArrayEquals(random, read(codec + "-random.fdt"));
+
+            HFileHeader header = directory.getHeader(codec + "-text.fdt");
+            assertEquals(codec.getId(), header.getCodecId());
+            byte[] chunk = chunks.get(header.chunkKey(0));
+            if (codec == HBlockCodec.NONE) {
+                assertEquals(CHUNK_SIZE, chunk.length);
+            } else {
+                assertTrue(codec + " stored " + chunk.length + " bytes", chunk.length < CHUNK_SIZE / 4);
+            }
+        }
+        // other extensions are not compressed
+        write("_0.tim", text);
+        assertEquals(HBlockCodec.NONE.getId(), directory.getHeader("_0.tim").getCodecId());
+    }
+
+    @Test
+    public void incompressibleBlocks() throws IOException {
+        for (int length : new int[]{0, 1, 255, 65536, HazelcastDirectory.DEFAULT_MAX_BLOCK_SIZE}) {
+            byte[] block = new byte[length + 3];
+            new Random(length).nextBytes(block);
+            for (HBlockCodec codec : CODECS) {
+                byte[] compressed = codec.compress(block, length);
+                byte[] decompressed = codec.decompress(compressed, length);
+                assertArrayEquals(codec + " " + length, Arrays.copyOf(block, length), decompressed);
+            }
+        }
+    }
+
+    private void write(String name, byte[] data) throws IOException {
+        try (IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    private byte[] read(String name) throws IOException {
+        try (IndexInput in = directory.openInput(name, IOContext.DEFAULT)) {
+            byte[] data = new byte[(int) in.length()];
+            in.readBytes(data, 0, data.length);
+            return data;
+        }
+    }
+}
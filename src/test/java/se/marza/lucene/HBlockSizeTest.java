@@ -0,0 +1,114 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks how the block size of a new file follows the size of the segment it is written for.
+ *
+ * @author Marza
+ */
+public class HBlockSizeTest {
+    private static final int MB = 1024 * 1024;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "blocks", HazelcastDirectory.StorageMode.CHUNKED);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void smallFilesUseBlockSize() {
+        int blockSize = directory.getBlockSize();
+        assertEquals(blockSize, directory.blockSize("_0.fdt", IOContext.DEFAULT));
+        assertEquals(blockSize, directory.blockSize("_0.fdt", IOContext.READONCE));
+        assertEquals(blockSize, directory.blockSize("_0.fdt", flush(100 * 1024)));
+    }
+
+    @Test
+    public void largeSegmentsUseLargerBlocks() {
+        assertEquals(256 * 1024, directory.blockSize("_0.fdt", merge(16 * MB)));
+        assertEquals(directory.getMaxBlockSize(), directory.blockSize("_0.fdt", flush(1024L * MB)));
+        directory.setMaxBlockSize(4 * MB);
+        assertEquals(4 * MB, directory.blockSize("_0.fdt", merge(1024L * MB)));
+    }
+
+    @Test
+    public void metadataFilesUseBlockSize() {
+        int blockSize = directory.getBlockSize();
+        for (String name : new String[]{"segments_1", "pending_segments_2", "_0.si", "_0.fnm", "_0.liv", "_0.cfe"}) {
+            assertEquals(name, blockSize, directory.blockSize(name, merge(1024L * MB)));
+        }
+    }
+
+    @Test
+    public void headerRecordsBlockSize() throws IOException {
+        try (IndexOutput out = directory.createOutput("_0.doc", merge(16 * MB))) {
+            out.writeBytes(new byte[1000], 1000);
+        }
+        assertEquals(256 * 1024, directory.getHeader("_0.doc").getChunkSize());
+    }
+
+    @Test
+    public void rejectInvalidSizes() {
+        try {
+            directory.setBlockSize(0);
+            fail("accepted block size 0");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            directory.setBlockSize(directory.getMaxBlockSize() + 1);
+            fail("accepted block size above the maximum");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            directory.setMaxBlockSize(directory.getBlockSize() - 1);
+            fail("accepted maximum below the block size");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            directory.setMaxBlockSize(HazelcastDirectory.MAX_BLOCK_SIZE + 1);
+            fail("accepted maximum above MAX_BLOCK_SIZE");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static IOContext flush(long segmentSize) {
+        return new IOContext(new FlushInfo(1000, segmentSize));
+    }
+
+    private static IOContext merge(long segmentSize) {
+        return new IOContext(new MergeInfo(1000, segmentSize, false, -1));
+    }
+}
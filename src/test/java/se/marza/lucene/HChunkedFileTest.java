@@ -0,0 +1,131 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Writes files in {@link HazelcastDirectory.StorageMode#CHUNKED} mode and reads them back chunk by chunk.
+ *
+ * @author Marza
+ */
+public class HChunkedFileTest {
+    private static final int CHUNK_SIZE = 64;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private IMap<HChunkKey, byte[]> chunks;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "chunked", HazelcastDirectory.StorageMode.CHUNKED);
+        directory.setBlockSize(CHUNK_SIZE);
+        chunks = instance.getMap(HazelcastDirectory.CHUNK_MAP_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(1);
+        for (int length : new int[]{0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 10 * CHUNK_SIZE, 12345}) {
+            String name = "file" + length;
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            write(name, data);
+
+            HFileHeader header = directory.getHeader(name);
+            assertEquals(length, header.getLength());
+            assertEquals(CHUNK_SIZE, header.getChunkSize());
+            for (int i = 0; i < header.numChunks(); i++) {
+                assertNotNull(chunks.get(header.chunkKey(i)));
+            }
+            try (IndexInput in = directory.openInput(name, IOContext.DEFAULT)) {
+                assertEquals(length, in.length());
+                byte[] read = new byte[length];
+                in.readBytes(read, 0, length);
+                assertArrayEquals(data, read);
+            }
+        }
+    }
+
+    @Test
+    public void seekAcrossChunks() throws IOException {
+        byte[] data = new byte[20 * CHUNK_SIZE + 7];
+        new Random(2).nextBytes(data);
+        write("file", data);
+
+        Random random = new Random(3);
+        try (IndexInput in = directory.openInput("file", IOContext.DEFAULT)) {
+            IndexInput clone = in.clone();
+            for (int i = 0; i < 500; i++) {
+                int pos = random.nextInt(data.length);
+                int n = Math.min(data.length - pos, random.nextInt(3 * CHUNK_SIZE));
+                IndexInput input = i % 2 == 0 ? in : clone;
+                input.seek(pos);
+                byte[] read = new byte[n];
+                input.readBytes(read, 0, n);
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + n), read);
+            }
+            IndexInput slice = in.slice("slice", CHUNK_SIZE - 3, 2 * CHUNK_SIZE);
+            byte[] read = new byte[2 * CHUNK_SIZE];
+            slice.readBytes(read, 0, read.length);
+            assertArrayEquals(Arrays.copyOfRange(data, CHUNK_SIZE - 3, 3 * CHUNK_SIZE - 3), read);
+        }
+    }
+
+    @Test
+    public void deleteRemovesChunks() throws IOException {
+        byte[] data = new byte[5 * CHUNK_SIZE];
+        write("file", data);
+        HFileHeader header = directory.getHeader("file");
+        directory.deleteFile("file");
+        for (int i = 0; i < header.numChunks(); i++) {
+            assertFalse(chunks.containsKey(header.chunkKey(i)));
+        }
+        assertEquals(0, directory.listAll().length);
+        try {
+            directory.openInput("file", IOContext.DEFAULT);
+            fail("opened a deleted file");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    private void write(String name, byte[] data) throws IOException {
+        try (IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that chunks are sent while a file is written and that the file is only published on close.
+ *
+ * @author Marza
+ */
+public class HChunkedOutputStreamTest {
+    private static final int CHUNK_SIZE = 128;
+    private static final int CHUNKS = 4 * HChunkedOutputStream.MAX_PENDING_CHUNKS;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private IMap<HChunkKey, byte[]> chunks;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "output", HazelcastDirectory.StorageMode.CHUNKED);
+        directory.setBlockSize(CHUNK_SIZE);
+        chunks = instance.getMap(HazelcastDirectory.CHUNK_MAP_NAME);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void chunksAreSentWhileWriting() throws IOException {
+        byte[] data = new byte[CHUNKS * CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        try (IndexOutput out = directory.createOutput("file", IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+            // completed chunks are in flight or stored, at most MAX_PENDING_CHUNKS are awaited
+            assertTrue(chunks.size() >= CHUNKS - HChunkedOutputStream.MAX_PENDING_CHUNKS - 1);
+            assertEquals(0, directory.fileLength("file"));
+        }
+        assertEquals(CHUNKS, chunks.size());
+    }
+
+    @Test
+    public void publishOnClose() throws IOException {
+        byte[] data = new byte[10 * CHUNK_SIZE + 3];
+        new Random(2).nextBytes(data);
+        long checksum;
+        try (IndexOutput out = directory.createOutput("file", IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+            checksum = out.getChecksum();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        assertEquals(crc.getValue(), checksum);
+
+        HFileHeader header = directory.getHeader("file");
+        assertEquals(data.length, header.getLength());
+        assertEquals(checksum, header.getChecksum());
+        assertEquals(data.length, directory.fileLength("file"));
+        assertEquals(11, chunks.size());
+    }
+}
@@ -0,0 +1,183 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Counts references of contents shared by copies in {@link HazelcastDirectory.StorageMode#CHUNKED} mode.
+ *
+ * @author Marza
+ */
+public class HContentRefTest {
+    private static HazelcastInstance instance;
+
+    private IMap<HChunkKey, byte[]> chunks;
+    private IMap<String, HContentRef> contents;
+    private HazelcastDirectory source;
+    private HazelcastDirectory target;
+    private byte[] data;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        chunks = instance.getMap(HazelcastDirectory.CHUNK_MAP_NAME);
+        contents = instance.getMap(HazelcastDirectory.CONTENT_MAP_NAME);
+        source = new HazelcastDirectory(instance, "source", HazelcastDirectory.StorageMode.CHUNKED);
+        target = new HazelcastDirectory(instance, "target", HazelcastDirectory.StorageMode.CHUNKED);
+        data = new byte[100000];
+        new Random(1).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        source.destroy();
+        target.destroy();
+        assertEquals(0, chunks.size());
+        assertEquals(0, contents.size());
+    }
+
+    @Test
+    public void copyBetweenIndexesSharesChunks() throws IOException {
+        write(source, "a", data);
+        int stored = chunks.size();
+        target.copyFrom(source, "a", "b", IOContext.DEFAULT);
+        target.copyFrom(source, "a", "c", IOContext.DEFAULT);
+        assertEquals(stored, chunks.size());
+        assertEquals(3, refs(target, "b"));
+
+        source.deleteFile("a");
+        target.deleteFile("b");
+        assertEquals(stored, chunks.size());
+        assertEquals(1, refs(target, "c"));
+        assertContents(target, "c", data);
+
+        target.deleteFile("c");
+        assertEquals(0, chunks.size());
+        assertEquals(0, contents.size());
+    }
+
+    @Test
+    public void copyFromOtherDirectoryUploadsOnce() throws IOException {
+        try (RAMDirectory ram = new RAMDirectory()) {
+            write(ram, "a", data);
+            target.copyFrom(ram, "a", "b", IOContext.DEFAULT);
+            int stored = chunks.size();
+            target.copyFrom(ram, "a", "c", IOContext.DEFAULT);
+            source.copyFrom(ram, "a", "d", IOContext.DEFAULT);
+            assertEquals(stored, chunks.size());
+            assertEquals(3, refs(target, "b"));
+        }
+
+        // overwriting and renaming keep the count of the other copies
+        write(target, "b", new byte[10]);
+        source.renameFile("d", "e");
+        assertEquals(2, refs(target, "c"));
+        assertContents(target, "c", data);
+        assertContents(source, "e", data);
+    }
+
+    @Test
+    public void plainWritesAreNotShared() throws IOException {
+        write(source, "a", data);
+        write(source, "b", data);
+        assertEquals(0, contents.size());
+        assertEquals(2 * source.getHeader("a").numChunks(), chunks.size());
+    }
+
+    @Test
+    public void sizeCountsOwnWritesOnly() throws IOException {
+        write(source, "a", data);
+        HFileHeader header = source.getHeader("a");
+        long size = (long) header.numChunks() * header.getChunkSize();
+        assertEquals(size, source.ramBytesUsed());
+        target.copyFrom(source, "a", "b", IOContext.DEFAULT);
+        assertEquals(0, target.ramBytesUsed());
+        target.deleteFile("b");
+        assertEquals(0, target.ramBytesUsed());
+        source.renameFile("a", "c");
+        assertEquals(size, source.ramBytesUsed());
+        source.deleteFile("c");
+        assertEquals(0, source.ramBytesUsed());
+
+        // contents already stored are not sent again, nor counted
+        try (RAMDirectory ram = new RAMDirectory()) {
+            write(ram, "a", data);
+            target.copyFrom(ram, "a", "b", IOContext.DEFAULT);
+            source.copyFrom(ram, "a", "d", IOContext.DEFAULT);
+        }
+        assertEquals(size, target.ramBytesUsed());
+        assertEquals(0, source.ramBytesUsed());
+        source.deleteFile("d");
+        target.deleteFile("b");
+        assertEquals(0, source.ramBytesUsed());
+        assertEquals(0, target.ramBytesUsed());
+    }
+
+    @Test
+    public void sizeInFileMode() throws IOException {
+        HazelcastDirectory files = new HazelcastDirectory(instance, "files", HazelcastDirectory.StorageMode.FILE);
+        HazelcastDirectory other = new HazelcastDirectory(instance, "files", HazelcastDirectory.StorageMode.FILE);
+        try {
+            write(files, "a", data);
+            HFileHeader header = files.getHeader("a");
+            assertEquals((long) header.numChunks() * header.getChunkSize(), files.ramBytesUsed());
+            files.renameFile("a", "b");
+            assertEquals((long) header.numChunks() * header.getChunkSize(), files.ramBytesUsed());
+            files.deleteFile("b");
+            assertEquals(0, files.ramBytesUsed());
+
+            write(files, "c", data);
+            other.deleteFile("c");
+            assertEquals(0, other.ramBytesUsed());
+        } finally {
+            other.close();
+            files.destroy();
+        }
+    }
+
+    private int refs(HazelcastDirectory directory, String name) throws IOException {
+        HContentRef ref = contents.get(directory.getHeader(name).getContentKey());
+        assertNotNull(ref);
+        return ref.getRefs();
+    }
+
+    private static void write(Directory directory, String name, byte[] bytes) throws IOException {
+        try (IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(bytes, bytes.length);
+        }
+    }
+
+    private static void assertContents(Directory directory, String name, byte[] expected) throws IOException {
+        try (IndexInput in = directory.openInput(name, IOContext.DEFAULT)) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readBytes(bytes, 0, bytes.length);
+            assertArrayEquals(expected, bytes);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Compares files split into differently sized blocks and reads large files back from the cluster.
+ *
+ * @author Marza
+ */
+public class HDirectFileTest {
+    private static HazelcastInstance instance;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void equalsAcrossSlabSizes() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        HDirectFile a = direct(data, 100);
+        HDirectFile b = direct(data, 37);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(heap(data, 64).hashCode(), a.hashCode());
+
+        data[999] ^= 1;
+        assertFalse(a.equals(direct(data, 37)));
+        assertFalse(a.equals(direct(new byte[999], 100)));
+    }
+
+    @Test
+    public void largeFilesAreReadInBlocks() throws IOException {
+        byte[] data = new byte[2 * HFile.MAX_CONTIGUOUS_BLOCK_SIZE + 10];
+        new Random(2).nextBytes(data);
+        IMap<String, HFile> files = instance.getMap("large");
+        try {
+            files.set("heap", heap(data, 64 * 1024));
+            files.set("direct", direct(data, 64 * 1024));
+            for (String name : new String[]{"heap", "direct"}) {
+                HFile file = files.get(name);
+                assertTrue(file.isSealed());
+                assertEquals(name, 3, file.numBlocks());
+                assertEquals(name, data.length, file.getLength());
+                assertEquals(name, name.equals("heap") ? heap(data, 1000) : direct(data, 1000), file);
+            }
+        } finally {
+            files.destroy();
+        }
+    }
+
+    private static HFile heap(byte[] data, int blockSize) throws IOException {
+        HFile file = new HFile(null, blockSize);
+        try (IndexOutput out = new HOutputStream("heap", file)) {
+            out.writeBytes(data, data.length);
+        }
+        return file;
+    }
+
+    private static HDirectFile direct(byte[] data, int blockSize) throws IOException {
+        HDirectFile file = new HDirectFile(null, blockSize);
+        try (IndexOutput out = new HDirectOutputStream("direct", file)) {
+            out.writeBytes(data, data.length);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Opens many indexes on one instance and checks that they do not see each other's files.
+ *
+ * @author Marza
+ */
+public class HDirectoriesTest {
+    private static HazelcastInstance instance;
+
+    private HDirectories directories;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directories = new HDirectories(instance, HazelcastDirectory.StorageMode.CHUNKED, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (String name : directories.names()) {
+            directories.drop(name);
+        }
+        directories.close();
+    }
+
+    @Test
+    public void indexesAreIsolated() throws IOException {
+        HazelcastDirectory a = directories.open("a");
+        HazelcastDirectory b = directories.open("b", HazelcastDirectory.StorageMode.FILE);
+        write(a, "file", new byte[]{1, 2, 3});
+        write(b, "file", new byte[]{4, 5});
+        write(b, "other", new byte[]{6});
+
+        assertArrayEquals(new String[]{"file"}, a.listAll());
+        assertArrayEquals(new String[]{"file", "other"}, b.listAll());
+        assertArrayEquals(new byte[]{1, 2, 3}, read(a, "file"));
+        assertArrayEquals(new byte[]{4, 5}, read(b, "file"));
+        assertEquals(Long.valueOf(3), directories.storedBytes().get("a"));
+        assertEquals(Long.valueOf(3), directories.storedBytes().get("b"));
+
+        a.deleteFile("file");
+        assertEquals(0, a.listAll().length);
+        assertArrayEquals(new byte[]{4, 5}, read(b, "file"));
+    }
+
+    @Test
+    public void writersOfDifferentIndexes() throws IOException {
+        try (IndexWriter first = new IndexWriter(directories.open("first"), new IndexWriterConfig(new StandardAnalyzer()));
+             IndexWriter second = new IndexWriter(directories.open("second"), new IndexWriterConfig(new StandardAnalyzer()))) {
+            for (int i = 0; i < 10; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                first.addDocument(doc);
+                if (i % 2 == 0) {
+                    second.addDocument(doc);
+                }
+            }
+        }
+        try (DirectoryReader first = DirectoryReader.open(directories.open("first"));
+             DirectoryReader second = DirectoryReader.open(directories.open("second"))) {
+            assertEquals(10, first.numDocs());
+            assertEquals(5, second.numDocs());
+        }
+    }
+
+    @Test
+    public void openAndRegistry() throws IOException {
+        HazelcastDirectory chunked = directories.open("chunked");
+        assertSame(chunked, directories.open("chunked"));
+        assertSame(directories.getBlockCache(), chunked.getBlockCache());
+        try {
+            directories.open("chunked", HazelcastDirectory.StorageMode.FILE);
+            fail("opened an index with another storage mode");
+        } catch (IllegalStateException expected) {
+        }
+        chunked.close();
+        HazelcastDirectory reopened = directories.open("chunked");
+        assertNotSame(chunked, reopened);
+
+        // the storage mode is recorded in the cluster, not in this registry instance
+        try (HDirectories other = new HDirectories(instance)) {
+            assertEquals(HazelcastDirectory.StorageMode.CHUNKED, other.open("chunked").getStorageMode());
+            assertTrue(other.exists("chunked"));
+            assertEquals(Collections.singleton("chunked"), other.names());
+        }
+        assertTrue(reopened.isOpen());
+    }
+
+    @Test
+    public void drop() throws IOException {
+        write(directories.open("dropped"), "file", new byte[]{1});
+        directories.drop("dropped");
+        assertFalse(directories.exists("dropped"));
+        assertEquals(0, directories.open("dropped").listAll().length);
+    }
+
+    private static void write(HazelcastDirectory directory, String name, byte[] bytes) throws IOException {
+        try (IndexOutput out = directory.createOutput(name, IOContext.DEFAULT)) {
+            out.writeBytes(bytes, bytes.length);
+        }
+    }
+
+    private static byte[] read(HazelcastDirectory directory, String name) throws IOException {
+        try (IndexInput in = directory.openInput(name, IOContext.DEFAULT)) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readBytes(bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+}
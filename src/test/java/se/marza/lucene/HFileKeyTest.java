@@ -0,0 +1,100 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.PartitionService;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that the files and chunks of a segment share a partition.
+ *
+ * @author Marza
+ */
+public class HFileKeyTest {
+    private static HazelcastInstance instance;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void partitionKeys() {
+        String segment = new HFileKey("index", "_3.doc").getPartitionKey();
+        assertEquals("index/_3", segment);
+        for (String file : new String[]{"_3.tim", "_3.si", "_3_1.liv", "_3_Lucene50_0.pos"}) {
+            assertEquals(file, segment, new HFileKey("index", file).getPartitionKey());
+        }
+        assertNotEquals(segment, new HFileKey("index", "_4.doc").getPartitionKey());
+        // equally named files of different indexes are different keys
+        HFileKey other = new HFileKey("other", "_3.doc");
+        assertEquals("other/_3", other.getPartitionKey());
+        assertNotEquals(new HFileKey("index", "_3.doc"), other);
+        assertEquals(new HFileKey("index", "_3.doc"), new HFileKey("index", "_3.doc"));
+    }
+
+    @Test
+    public void segmentsShareAPartition() throws IOException {
+        PartitionService partitions = instance.getPartitionService();
+        for (HazelcastDirectory.StorageMode mode : HazelcastDirectory.StorageMode.values()) {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, "partitioned-" + mode, mode);
+            try {
+                IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+                        .setMergePolicy(NoMergePolicy.INSTANCE)
+                        .setUseCompoundFile(false);
+                try (IndexWriter writer = new IndexWriter(directory, config)) {
+                    for (int i = 0; i < 3; i++) {
+                        Document doc = new Document();
+                        doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                        writer.addDocument(doc);
+                        writer.commit();
+                    }
+                }
+
+                Map<String, Integer> segmentPartitions = new HashMap<>();
+                for (String file : directory.listAll()) {
+                    HFileHeader header = directory.getHeader(file);
+                    String written = file;
+                    boolean commit = file.startsWith(IndexFileNames.SEGMENTS + "_");
+                    if (mode == HazelcastDirectory.StorageMode.CHUNKED && commit) {
+                        // chunks stay where they were written, segments_N is renamed from pending_segments_N
+                        written = IndexFileNames.PENDING_SEGMENTS + file.substring(IndexFileNames.SEGMENTS.length());
+                    }
+                    assertEquals(file, HFileKey.partitionKey(directory.getName(), written), header.getPartitionKey());
+                    int partition = partitions.getPartition(new HFileKey(directory.getName(), file)).getPartitionId();
+                    if (mode == HazelcastDirectory.StorageMode.CHUNKED && header.getLength() > 0) {
+                        assertEquals(file, partitions.getPartition(new HFileKey(directory.getName(), written))
+                                .getPartitionId(), partitions.getPartition(header.chunkKey(0)).getPartitionId());
+                    }
+                    Integer previous = segmentPartitions.put(IndexFileNames.parseSegmentName(file), partition);
+                    assertTrue(file, previous == null || previous == partition);
+                }
+                assertTrue(segmentPartitions.toString(), segmentPartitions.size() > 3);
+            } finally {
+                directory.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stores files on disk and loads them back, directly and through a restarted member.
+ *
+ * @author Marza
+ */
+public class HFileMapStoreTest {
+    private static final String INDEX = "stored";
+    private static final int DOCS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storeAndLoad() throws IOException {
+        HFileMapStore store = new HFileMapStore(folder.getRoot().getPath(), 1);
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        HFileKey heapKey = new HFileKey(INDEX, "_0.fdt");
+        HFileKey directKey = new HFileKey(INDEX, "_0.tim");
+        store.store(heapKey, heap(data, 1000));
+        store.store(directKey, direct(data, 333));
+        try {
+            assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "_0.fdt").toPath()));
+            assertArrayEquals(data, Files.readAllBytes(new File(folder.getRoot(), "_0.tim").toPath()));
+            assertEquals(heap(data, 64), store.load(heapKey));
+            assertEquals(heap(data, 64), store.load(directKey));
+            assertTrue(store.load(heapKey).isSealed());
+            // only stored files are left
+            assertEquals(2, folder.getRoot().list().length);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void storeAllAndLoadAll() throws IOException {
+        HFileMapStore store = new HFileMapStore(folder.getRoot().getPath(), 4);
+        Map<HFileKey, HFile> files = new HashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            files.put(new HFileKey(INDEX, "_" + i + ".doc"), heap(data, 512));
+        }
+        store.init(null, new Properties(), INDEX);
+        try {
+            store.storeAll(files);
+            assertEquals(files, store.loadAll(files.keySet()));
+            int keys = 0;
+            for (HFileKey key : store.loadAllKeys()) {
+                assertTrue(key.toString(), files.containsKey(key));
+                keys++;
+            }
+            assertEquals(files.size(), keys);
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void deleteAndLoadMissing() throws IOException {
+        HFileMapStore store = new HFileMapStore(folder.getRoot().getPath(), 1);
+        HFileKey key = new HFileKey(INDEX, "_0.fdt");
+        store.store(key, heap(new byte[100], 10));
+        store.delete(key);
+        store.delete(key);
+        assertFalse(new File(folder.getRoot(), "_0.fdt").exists());
+        assertNull(store.load(key));
+        assertNull(store.loadAll(Arrays.asList(key, new HFileKey(INDEX, "_1.fdt"))));
+    }
+
+    @Test
+    public void indexSurvivesRestart() throws IOException {
+        HFileMapStore store = new HFileMapStore(folder.getRoot().getPath());
+        HazelcastInstance instance = newInstance(store);
+        try {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX, HazelcastDirectory.StorageMode.FILE);
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document doc = new Document();
+                    doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                    writer.addDocument(doc);
+                }
+            }
+        } finally {
+            instance.shutdown();
+        }
+
+        instance = newInstance(new HFileMapStore(folder.getRoot().getPath()));
+        try {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX, HazelcastDirectory.StorageMode.FILE);
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                assertEquals(DOCS, reader.numDocs());
+            }
+        } finally {
+            instance.shutdown();
+        }
+    }
+
+    @Test
+    public void initialLoadModes() throws Exception {
+        HazelcastInstance instance = newInstance(new HFileMapStore(folder.getRoot().getPath()));
+        try {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX, HazelcastDirectory.StorageMode.FILE);
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document doc = new Document();
+                    doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                    writer.addDocument(doc);
+                }
+            }
+        } finally {
+            instance.shutdown();
+        }
+        Files.write(new File(folder.getRoot(), "orphan").toPath(), new byte[10]);
+        int onDisk = folder.getRoot().list().length;
+
+        for (HFileMapStore.InitialLoad load : HFileMapStore.InitialLoad.values()) {
+            instance = newInstance(new HFileMapStore(folder.getRoot().getPath(), 2, load));
+            try {
+                HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX,
+                        HazelcastDirectory.StorageMode.FILE);
+                int loaded = instance.getMap(INDEX).size();
+                // reads the segments_N and .si files
+                int committed = SegmentInfos.readLatestCommit(directory).files(true).size();
+                switch (load) {
+                    case ALL:
+                        assertEquals(load.toString(), onDisk, loaded);
+                        break;
+                    case COMMIT:
+                        assertEquals(load.toString(), committed, loaded);
+                        break;
+                    case LAZY:
+                        assertEquals(load.toString(), 1, loaded);
+                        break;
+                }
+                // files left out are loaded on first access or by warmUp
+                assertEquals(load.toString(), onDisk == loaded ? onDisk : committed, directory.listAll().length);
+                try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                    assertEquals(load.toString(), DOCS, reader.numDocs());
+                }
+                directory.warmUp().get();
+                assertTrue(load.toString(), instance.getMap(INDEX).size() >= committed);
+            } finally {
+                instance.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void headersOfLoadedFiles() throws IOException {
+        String[] files;
+        Map<String, Long> lengths = new HashMap<>();
+        HazelcastInstance instance = newInstance(new HFileMapStore(folder.getRoot().getPath()));
+        try {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX, HazelcastDirectory.StorageMode.FILE);
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                Document doc = new Document();
+                doc.add(new StringField("id", "1", Field.Store.YES));
+                writer.addDocument(doc);
+            }
+            files = directory.listAll();
+            for (String file : files) {
+                lengths.put(file, directory.fileLength(file));
+            }
+        } finally {
+            instance.shutdown();
+        }
+
+        instance = newInstance(new HFileMapStore(folder.getRoot().getPath()));
+        try {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, INDEX, HazelcastDirectory.StorageMode.FILE);
+            assertArrayEquals(files, directory.listAll());
+            for (String file : files) {
+                assertEquals(file, lengths.get(file).longValue(), directory.fileLength(file));
+                HFileHeader header = directory.getHeader(file);
+                assertEquals(file, HFileKey.partitionKey(INDEX, file), header.getPartitionKey());
+                assertEquals(file, 0, header.getGeneration());
+                assertEquals(file, header.getFileId(), new HFileMapStore(folder.getRoot().getPath())
+                        .headerLoader(INDEX).load(file).getFileId());
+            }
+            // loaded files are not counted, so deleting them takes nothing off
+            assertEquals(0, directory.ramBytesUsed());
+            directory.deleteFile(files[0]);
+            assertEquals(0, directory.ramBytesUsed());
+        } finally {
+            instance.shutdown();
+        }
+    }
+
+    @Test
+    public void oneStorePerMap() {
+        HFileMapStore store = new HFileMapStore(folder.getRoot().getPath(), 1);
+        try {
+            store.loadAllKeys();
+            fail("listed keys before the map was known");
+        } catch (IllegalStateException expected) {
+        }
+        store.init(null, new Properties(), INDEX);
+        store.init(null, new Properties(), INDEX);
+        try {
+            store.init(null, new Properties(), "other");
+            fail("initialized a store for a second map");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void indexesInTheirOwnStores() throws IOException {
+        String[] indexes = {"first", "second"};
+        File[] folders = {folder.newFolder("first"), folder.newFolder("second")};
+        HazelcastInstance instance = newInstance(indexes, folders);
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                HazelcastDirectory directory = new HazelcastDirectory(instance, indexes[i],
+                        HazelcastDirectory.StorageMode.FILE);
+                try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                    for (int doc = 0; doc < (i + 1) * DOCS; doc++) {
+                        Document document = new Document();
+                        document.add(new StringField("id", Integer.toString(doc), Field.Store.YES));
+                        writer.addDocument(document);
+                    }
+                }
+            }
+        } finally {
+            instance.shutdown();
+        }
+
+        instance = newInstance(indexes, folders);
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                for (Object key : instance.getMap(indexes[i]).keySet()) {
+                    HFileKey fileKey = (HFileKey) key;
+                    assertEquals(key.toString(), HFileKey.partitionKey(indexes[i], fileKey.getName()),
+                            fileKey.getPartitionKey());
+                }
+                HazelcastDirectory directory = new HazelcastDirectory(instance, indexes[i],
+                        HazelcastDirectory.StorageMode.FILE);
+                assertEquals(folders[i].list().length, directory.listAll().length);
+                try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                    assertEquals(indexes[i], (i + 1) * DOCS, reader.numDocs());
+                }
+            }
+        } finally {
+            instance.shutdown();
+        }
+    }
+
+    private static HazelcastInstance newInstance(String[] indexes, File[] folders) {
+        Config config = HTestSupport.newConfig();
+        for (int i = 0; i < indexes.length; i++) {
+            new HFileMapStore(folders[i].getPath()).configure(config, indexes[i]);
+        }
+        return Hazelcast.newHazelcastInstance(config);
+    }
+
+    private static HazelcastInstance newInstance(HFileMapStore store) {
+        Config config = HTestSupport.newConfig();
+        store.configure(config, INDEX);
+        return Hazelcast.newHazelcastInstance(config);
+    }
+
+    private static HFile heap(byte[] data, int blockSize) throws IOException {
+        HFile file = new HFile(null, blockSize);
+        try (IndexOutput out = new HOutputStream("heap", file)) {
+            out.writeBytes(data, data.length);
+        }
+        return file;
+    }
+
+    private static HDirectFile direct(byte[] data, int blockSize) throws IOException {
+        HDirectFile file = new HDirectFile(null, blockSize);
+        try (IndexOutput out = new HDirectOutputStream("direct", file)) {
+            out.writeBytes(data, data.length);
+        }
+        return file;
+    }
+}
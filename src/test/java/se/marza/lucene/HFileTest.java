@@ -0,0 +1,72 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Test;
+
+/**
+ * Checks that files are sealed once written and can not be changed afterwards.
+ *
+ * @author Marza
+ */
+public class HFileTest {
+    private static final int BLOCK_SIZE = 100;
+
+    @Test
+    public void sealedOnClose() throws IOException {
+        byte[] data = new byte[10 * BLOCK_SIZE + 1];
+        new Random(1).nextBytes(data);
+        HFile file = new HFile(null, BLOCK_SIZE);
+        IndexOutput out = new HOutputStream("file", file);
+        out.writeBytes(data, data.length);
+        assertFalse(file.isSealed());
+        out.close();
+        assertTrue(file.isSealed());
+        assertEquals(data.length, file.getLength());
+        assertEquals(11, file.numBlocks());
+
+        try (IndexInput in = new HInputStream(file, "file")) {
+            byte[] read = new byte[data.length];
+            in.readBytes(read, 0, read.length);
+            assertArrayEquals(data, read);
+        }
+    }
+
+    @Test
+    public void writeAfterSeal() throws IOException {
+        for (HFile file : new HFile[]{new HFile(null, BLOCK_SIZE), new HDirectFile(null, BLOCK_SIZE)}) {
+            IndexOutput out = file instanceof HDirectFile
+                    ? new HDirectOutputStream("file", (HDirectFile) file) : new HOutputStream("file", file);
+            out.writeBytes(new byte[BLOCK_SIZE + 1], BLOCK_SIZE + 1);
+            out.close();
+            try {
+                file.addBuffer(BLOCK_SIZE);
+                fail("added a buffer to a sealed " + file);
+            } catch (IllegalStateException expected) {
+            }
+            try {
+                file.setLength(0);
+                fail("changed the length of a sealed " + file);
+            } catch (IllegalStateException expected) {
+            }
+            if (file instanceof HDirectFile) {
+                try {
+                    ((HDirectFile) file).addSlab();
+                    fail("added a slab to a sealed " + file);
+                } catch (IllegalStateException expected) {
+                }
+            }
+            assertEquals(BLOCK_SIZE + 1, file.getLength());
+            assertEquals(2, file.numBlocks());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Merges indexes with {@link HazelcastDirectory#mergeOnDataOwner(int)}.
+ *
+ * @author Marza
+ */
+public class HMergeTest {
+    private static final int SEGMENTS = 5;
+    private static final int DOCS = 20;
+    private static final int BLOCK_SIZE = 1024;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "merged", HazelcastDirectory.StorageMode.CHUNKED);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void mergedFilesKeepTheSettings() throws Exception {
+        directory.setBlockSize(BLOCK_SIZE);
+        directory.setMaxBlockSize(BLOCK_SIZE);
+        directory.setCodec("fdt", HBlockCodec.LZ4);
+        index();
+
+        assertEquals(Integer.valueOf(1), directory.mergeOnDataOwner(1).get());
+        int merged = 0;
+        for (String file : directory.listAll()) {
+            if (file.endsWith(".fdt")) {
+                HFileHeader header = directory.getHeader(file);
+                assertEquals(file, HBlockCodec.LZ4.getId(), header.getCodecId());
+                assertEquals(file, BLOCK_SIZE, header.getChunkSize());
+                merged++;
+            }
+        }
+        assertEquals(1, merged);
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertEquals(SEGMENTS * DOCS, reader.numDocs());
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                Document doc = reader.document(i);
+                assertEquals("body " + doc.get("id"), doc.get("body"));
+            }
+        }
+    }
+
+    @Test
+    public void mergeDefaultPolicy() throws Exception {
+        index();
+        int segments = directory.mergeOnDataOwner(0).get();
+        assertTrue(segments >= 1 && segments <= SEGMENTS);
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            assertEquals(SEGMENTS * DOCS, reader.numDocs());
+        }
+    }
+
+    private void index() throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer())
+                .setMergePolicy(NoMergePolicy.INSTANCE);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = 0; i < SEGMENTS * DOCS; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                doc.add(new StoredField("body", "body " + i));
+                writer.addDocument(doc);
+                if ((i + 1) % DOCS == 0) {
+                    writer.commit();
+                }
+            }
+        }
+    }
+}
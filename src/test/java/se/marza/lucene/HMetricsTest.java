@@ -0,0 +1,121 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the call counts, latencies and traffic recorded by a directory.
+ *
+ * @author Marza
+ */
+public class HMetricsTest {
+    private static final int CHUNK_SIZE = 64;
+    private static final int LENGTH = 10 * CHUNK_SIZE;
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private HMetrics metrics;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        directory = new HazelcastDirectory(instance, "measured", HazelcastDirectory.StorageMode.CHUNKED);
+        directory.setBlockSize(CHUNK_SIZE);
+        directory.setBlockCache(null);
+        metrics = directory.getMetrics();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void recordCallsAndTraffic() throws IOException {
+        try (IndexOutput out = directory.createOutput("file", IOContext.DEFAULT)) {
+            out.writeBytes(new byte[LENGTH], LENGTH);
+        }
+        try (IndexInput in = directory.openInput("file", IOContext.DEFAULT)) {
+            in.readBytes(new byte[LENGTH], 0, LENGTH);
+        }
+        directory.fileLength("file");
+        directory.renameFile("file", "renamed");
+        directory.deleteFile("renamed");
+
+        for (HMetrics.Op op : new HMetrics.Op[]{HMetrics.Op.CREATE_OUTPUT, HMetrics.Op.PUBLISH,
+                HMetrics.Op.OPEN_INPUT, HMetrics.Op.FILE_LENGTH, HMetrics.Op.RENAME_FILE, HMetrics.Op.DELETE_FILE}) {
+            assertEquals(op.toString(), 1, metrics.getCount(op));
+            assertTrue(op.toString(), metrics.getTotalNanos(op) >= metrics.getMaxNanos(op));
+            assertTrue(op.toString(), metrics.getPercentileNanos(op, 50) <= metrics.getMaxNanos(op));
+        }
+        assertEquals(10, metrics.getCount(HMetrics.Op.FETCH));
+        assertEquals(LENGTH, metrics.getBytesWritten());
+        assertEquals(LENGTH, metrics.getBytesRead());
+        assertEquals(LENGTH, metrics.getBytesFetched());
+        assertEquals(10, metrics.getBlockSwitches());
+
+        Map<String, Long> snapshot = metrics.snapshot();
+        assertEquals(Long.valueOf(1), snapshot.get("openInput.count"));
+        assertEquals(Long.valueOf(LENGTH), snapshot.get("bytesWritten"));
+    }
+
+    @Test
+    public void percentiles() {
+        assertEquals(0, metrics.getPercentileNanos(HMetrics.Op.FETCH, 99));
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            metrics.record(HMetrics.Op.FETCH, start);
+        }
+        long p50 = metrics.getPercentileNanos(HMetrics.Op.FETCH, 50);
+        long p99 = metrics.getPercentileNanos(HMetrics.Op.FETCH, 99);
+        assertTrue(p50 > 0 && p50 <= p99 && p99 <= metrics.getMaxNanos(HMetrics.Op.FETCH));
+        try {
+            metrics.getPercentileNanos(HMetrics.Op.FETCH, 101);
+            fail("accepted percentile 101");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void registerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = directory.registerMBean();
+        assertEquals(name, directory.registerMBean());
+        try (IndexOutput out = directory.createOutput("file", IOContext.DEFAULT)) {
+            out.writeByte((byte) 1);
+        }
+        directory.fileLength("file");
+        assertEquals(1L, server.getAttribute(name, "fileLength.count"));
+        directory.close();
+        assertFalse(server.isRegistered(name));
+    }
+}
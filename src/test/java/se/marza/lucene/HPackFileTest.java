@@ -0,0 +1,117 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.CheckIndex;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes snapshots of an index to pack files and restores them in every storage mode.
+ *
+ * @author Marza
+ */
+public class HPackFileTest {
+    private static final int DOCS = 500;
+
+    private static HazelcastInstance instance;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void restoreInEveryStorageMode() throws IOException {
+        for (HazelcastDirectory.StorageMode source : HazelcastDirectory.StorageMode.values()) {
+            Path pack = folder.getRoot().toPath().resolve(source + ".hpack");
+            HazelcastDirectory directory = new HazelcastDirectory(instance, "pack-" + source, source);
+            long generation;
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document doc = new Document();
+                    doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                    doc.add(new TextField("body", "hello world " + i, Field.Store.NO));
+                    writer.addDocument(doc);
+                    if (i == DOCS / 2) {
+                        writer.commit();
+                    }
+                }
+                writer.commit();
+                generation = directory.snapshot(pack);
+            }
+            assertEquals(2, generation);
+
+            for (HazelcastDirectory.StorageMode target : HazelcastDirectory.StorageMode.values()) {
+                HazelcastDirectory restored = new HazelcastDirectory(instance, "restored-" + source + "-" + target,
+                        target);
+                restored.restore(pack);
+                assertTrue(new CheckIndex(restored).checkIndex().clean);
+                try (DirectoryReader reader = DirectoryReader.open(restored)) {
+                    assertEquals(DOCS, reader.numDocs());
+                    assertEquals(generation, reader.getIndexCommit().getGeneration());
+                }
+                try {
+                    restored.restore(pack);
+                    fail("restored into a directory that is not empty");
+                } catch (IllegalStateException expected) {
+                }
+                restored.destroy();
+            }
+            directory.destroy();
+        }
+    }
+
+    @Test
+    public void detectCorruption() throws IOException {
+        Path pack = folder.getRoot().toPath().resolve("corrupt.hpack");
+        HazelcastDirectory directory = new HazelcastDirectory(instance, "corrupt", HazelcastDirectory.StorageMode.FILE);
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            Document doc = new Document();
+            doc.add(new TextField("body", "hello world", Field.Store.YES));
+            writer.addDocument(doc);
+            writer.commit();
+        }
+        directory.snapshot(pack);
+        directory.destroy();
+
+        byte[] bytes = Files.readAllBytes(pack);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(pack, bytes);
+        HazelcastDirectory restored = new HazelcastDirectory(instance, "corrupt-restored",
+                HazelcastDirectory.StorageMode.FILE);
+        try {
+            restored.restore(pack);
+            fail("restored a corrupt pack");
+        } catch (IOException expected) {
+        } finally {
+            restored.destroy();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks when inputs of {@link HazelcastDirectory.StorageMode#CHUNKED} files read chunks ahead.
+ *
+ * @author Marza
+ */
+public class HReadAheadTest {
+    private static final int CHUNK_SIZE = 64;
+    private static final int CHUNKS = 40;
+    private static final int READ_AHEAD_CHUNKS = 8;
+    private static final IOContext MERGE = new IOContext(new MergeInfo(1000, CHUNKS * CHUNK_SIZE, false, -1));
+
+    private static HazelcastInstance instance;
+
+    private HazelcastDirectory directory;
+    private HBlockCache cache;
+    private byte[] data;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new HazelcastDirectory(instance, "readahead", HazelcastDirectory.StorageMode.CHUNKED);
+        directory.setBlockSize(CHUNK_SIZE);
+        directory.setReadAheadSize(READ_AHEAD_CHUNKS * CHUNK_SIZE);
+        cache = new HBlockCache(1024 * 1024);
+        directory.setBlockCache(cache);
+        data = new byte[CHUNKS * CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        try (IndexOutput out = directory.createOutput("file", IOContext.DEFAULT)) {
+            out.writeBytes(data, data.length);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.destroy();
+    }
+
+    @Test
+    public void mergesReadAheadFromTheStart() throws Exception {
+        try (IndexInput in = directory.openInput("file", MERGE)) {
+            in.readByte();
+            assertEquals(READ_AHEAD_CHUNKS, directory.getMetrics().getBlocksReadAhead());
+            // the chunks read ahead arrive in the cache and are read from there
+            long fileId = directory.getHeader("file").getFileId();
+            long deadline = System.currentTimeMillis() + 10000;
+            for (int chunk = 1; chunk <= READ_AHEAD_CHUNKS; chunk++) {
+                while (cache.getIfPresent(directory.cacheName("file"), fileId, chunk) == null) {
+                    assertTrue("chunk " + chunk + " not read ahead", System.currentTimeMillis() < deadline);
+                    Thread.sleep(10);
+                }
+            }
+            long hits = cache.stats().hitCount();
+            byte[] read = new byte[READ_AHEAD_CHUNKS * CHUNK_SIZE];
+            in.seek(CHUNK_SIZE);
+            in.readBytes(read, 0, read.length);
+            assertArrayEquals(Arrays.copyOfRange(data, CHUNK_SIZE, CHUNK_SIZE + read.length), read);
+            assertTrue(cache.stats().hitCount() >= hits + READ_AHEAD_CHUNKS);
+        }
+        assertArrayEquals(data, read(MERGE));
+    }
+
+    @Test
+    public void sequentialReadsReadAhead() throws IOException {
+        try (IndexInput in = directory.openInput("file", IOContext.DEFAULT)) {
+            in.readBytes(new byte[HInputStream.SEQUENTIAL_SWITCHES * CHUNK_SIZE], 0,
+                    HInputStream.SEQUENTIAL_SWITCHES * CHUNK_SIZE);
+            assertEquals(0, directory.getMetrics().getBlocksReadAhead());
+            in.readByte();
+            assertEquals(READ_AHEAD_CHUNKS, directory.getMetrics().getBlocksReadAhead());
+        }
+        assertArrayEquals(data, read(IOContext.DEFAULT));
+        assertTrue(directory.getMetrics().getBlocksReadAhead() <= CHUNKS);
+    }
+
+    @Test
+    public void randomReadsDoNotReadAhead() throws IOException {
+        try (IndexInput in = directory.openInput("file", IOContext.DEFAULT)) {
+            for (int chunk : new int[]{0, 10, 20, 5, 30, 15, 39}) {
+                in.seek((long) chunk * CHUNK_SIZE);
+                assertEquals(data[chunk * CHUNK_SIZE], in.readByte());
+            }
+        }
+        assertEquals(0, directory.getMetrics().getBlocksReadAhead());
+    }
+
+    @Test
+    public void disabled() throws IOException {
+        directory.setReadAheadSize(0);
+        assertArrayEquals(data, read(MERGE));
+        directory.setReadAheadSize(READ_AHEAD_CHUNKS * CHUNK_SIZE);
+        directory.setBlockCache(null);
+        assertArrayEquals(data, read(MERGE));
+        assertEquals(0, directory.getMetrics().getBlocksReadAhead());
+        try {
+            directory.setReadAheadSize(-1);
+            fail("accepted a negative read-ahead size");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private byte[] read(IOContext context) throws IOException {
+        try (IndexInput in = directory.openInput("file", context)) {
+            byte[] read = new byte[(int) in.length()];
+            in.readBytes(read, 0, read.length);
+            return read;
+        }
+    }
+}
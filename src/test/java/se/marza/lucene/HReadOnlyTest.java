@@ -0,0 +1,91 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.IOContext;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that directories opened with {@link HazelcastDirectory#openReadOnly} search but never write.
+ *
+ * @author Marza
+ */
+public class HReadOnlyTest {
+    private static final int DOCS = 10;
+
+    private static HazelcastInstance instance;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void rejectWrites() throws IOException {
+        for (HazelcastDirectory.StorageMode mode : HazelcastDirectory.StorageMode.values()) {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, "readonly-" + mode, mode);
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                for (int i = 0; i < DOCS; i++) {
+                    Document doc = new Document();
+                    doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                    writer.addDocument(doc);
+                }
+            }
+            String[] files = directory.listAll();
+
+            HazelcastDirectory readOnly = HazelcastDirectory.openReadOnly(instance, "readonly-" + mode, mode);
+            try {
+                assertTrue(readOnly.isReadOnly());
+                try (DirectoryReader reader = DirectoryReader.open(readOnly)) {
+                    assertEquals(mode.toString(), DOCS, reader.numDocs());
+                }
+                String file = files[0];
+                expectRejected(() -> readOnly.createOutput("new", IOContext.DEFAULT));
+                expectRejected(() -> readOnly.deleteFile(file));
+                expectRejected(() -> readOnly.renameFile(file, "renamed"));
+                expectRejected(() -> readOnly.copyFrom(directory, file, "copy", IOContext.DEFAULT));
+                expectRejected(() -> readOnly.restore(Paths.get("missing.hpack")));
+                expectRejected(() -> readOnly.mergeOnDataOwner(1));
+                expectRejected(readOnly::destroy);
+                expectRejected(() -> new IndexWriter(readOnly, new IndexWriterConfig(new StandardAnalyzer())));
+                assertArrayEquals(mode.toString(), files, directory.listAll());
+            } finally {
+                readOnly.close();
+                directory.destroy();
+            }
+        }
+    }
+
+    private static void expectRejected(Write write) throws IOException {
+        try {
+            write.run();
+            fail("wrote to a read-only directory");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,132 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Follows the commits of a writer with a read replica.
+ *
+ * @author Marza
+ */
+public class HReplicaTest {
+    private static final long TIMEOUT_MS = 20000;
+
+    private static HazelcastInstance instance;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void refreshOnCommit() throws Exception {
+        for (HazelcastDirectory.StorageMode mode : HazelcastDirectory.StorageMode.values()) {
+            HazelcastDirectory directory = new HazelcastDirectory(instance, "replicated-" + mode, mode);
+            HazelcastDirectory replicaDirectory = new HazelcastDirectory(instance, "replicated-" + mode, mode);
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+                addDocuments(writer, 10);
+                try (HReplica replica = new HReplica(replicaDirectory, null)) {
+                    assertEquals(mode.toString(), 10, numDocs(replica));
+                    for (int i = 0; i < 3; i++) {
+                        addDocuments(writer, 10);
+                        awaitGeneration(replica, writer);
+                        assertEquals(mode.toString(), 20 + 10 * i, numDocs(replica));
+                    }
+                }
+            } finally {
+                replicaDirectory.close();
+                directory.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void retryFailedRefresh() throws Exception {
+        HazelcastDirectory directory = new HazelcastDirectory(instance, "retried",
+                HazelcastDirectory.StorageMode.CHUNKED);
+        FailingDirectory replicaDirectory = new FailingDirectory(instance, "retried");
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()))) {
+            addDocuments(writer, 10);
+            try (HReplica replica = new HReplica(replicaDirectory, null)) {
+                replicaDirectory.failures.set(3);
+                addDocuments(writer, 10);
+                awaitGeneration(replica, writer);
+                assertTrue(replicaDirectory.failures.get() < 0);
+                assertEquals(20, numDocs(replica));
+            }
+        } finally {
+            replicaDirectory.close();
+            directory.destroy();
+        }
+    }
+
+    private static void addDocuments(IndexWriter writer, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            writer.addDocument(doc);
+        }
+        writer.commit();
+    }
+
+    private static void awaitGeneration(HReplica replica, IndexWriter writer) throws Exception {
+        long generation = SegmentInfos.getLastCommitGeneration(writer.getDirectory());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (replica.getGeneration() < generation && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(generation, replica.getGeneration());
+    }
+
+    private static int numDocs(HReplica replica) throws IOException {
+        SearcherManager manager = replica.getSearcherManager();
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Fails the given number of prefetches.
+     */
+    private static final class FailingDirectory extends HazelcastDirectory {
+        final AtomicInteger failures = new AtomicInteger();
+
+        FailingDirectory(HazelcastInstance instance, String name) {
+            super(instance, name, StorageMode.CHUNKED);
+        }
+
+        @Override
+        public void prefetch(Collection<String> names) throws IOException {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("injected failure");
+            }
+            super.prefetch(names);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import com.hazelcast.core.HazelcastInstance;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the cluster-wide write lock and the shard count of sharded indexes.
+ *
+ * @author Marza
+ */
+public class HShardsTest {
+    private static final int SHARDS = 3;
+    private static final int DOCS = 300;
+
+    private static HazelcastInstance instance;
+
+    @BeforeClass
+    public static void startInstance() {
+        instance = HTestSupport.newInstance();
+    }
+
+    @AfterClass
+    public static void stopInstance() {
+        instance.shutdown();
+    }
+
+    @Test
+    public void lockIsExclusive() throws IOException {
+        HazelcastDirectory first = new HazelcastDirectory(instance, "locked", HazelcastDirectory.StorageMode.CHUNKED);
+        HazelcastDirectory second = new HazelcastDirectory(instance, "locked", HazelcastDirectory.StorageMode.CHUNKED);
+        try {
+            Lock lock = first.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+            lock.ensureValid();
+            try {
+                second.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+                fail("obtained a lock held by another directory");
+            } catch (LockObtainFailedException expected) {
+            }
+            lock.close();
+            second.obtainLock(IndexWriter.WRITE_LOCK_NAME).close();
+        } finally {
+            second.close();
+            first.destroy();
+        }
+    }
+
+    @Test
+    public void writersLockTheirShardOnly() throws IOException {
+        try (HShards shards = new HShards(instance, "writers", SHARDS, HazelcastDirectory.StorageMode.CHUNKED);
+             IndexWriter writer = new IndexWriter(shards.shard(0), new IndexWriterConfig(new StandardAnalyzer()));
+             IndexWriter other = new IndexWriter(shards.shard(1), new IndexWriterConfig(new StandardAnalyzer()))) {
+            try {
+                new IndexWriter(shards.shard(0), new IndexWriterConfig(new StandardAnalyzer()));
+                fail("opened a second writer on a shard");
+            } catch (LockObtainFailedException expected) {
+            }
+            assertTrue(writer.isOpen() && other.isOpen());
+        } finally {
+            destroy("writers");
+        }
+    }
+
+    @Test
+    public void shardCountIsChecked() throws IOException {
+        try {
+            new HShards(instance, "counted", SHARDS, HazelcastDirectory.StorageMode.CHUNKED).close();
+            new HShards(instance, "counted", SHARDS, HazelcastDirectory.StorageMode.CHUNKED).close();
+            try {
+                new HShards(instance, "counted", SHARDS + 1, HazelcastDirectory.StorageMode.CHUNKED);
+                fail("opened an index with another shard count");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            destroy("counted");
+        }
+    }
+
+    @Test
+    public void routeAndSearchAllShards() throws IOException {
+        try (HShards shards = new HShards(instance, "routed", SHARDS, HazelcastDirectory.StorageMode.CHUNKED)) {
+            IndexWriter[] writers = new IndexWriter[SHARDS];
+            int[] counts = new int[SHARDS];
+            for (int i = 0; i < SHARDS; i++) {
+                writers[i] = new IndexWriter(shards.shard(i), new IndexWriterConfig(new StandardAnalyzer()));
+            }
+            for (int i = 0; i < DOCS; i++) {
+                String id = Integer.toString(i);
+                int shard = shards.shardFor(id);
+                assertEquals(shard, shards.shardFor(id));
+                Document doc = new Document();
+                doc.add(new StringField("id", id, Field.Store.YES));
+                writers[shard].addDocument(doc);
+                counts[shard]++;
+            }
+            for (IndexWriter writer : writers) {
+                writer.close();
+            }
+            for (int count : counts) {
+                assertTrue(count > 0);
+            }
+            try (MultiReader reader = shards.openReader()) {
+                assertEquals(DOCS, reader.numDocs());
+            }
+        } finally {
+            destroy("routed");
+        }
+    }
+
+    private static void destroy(String name) throws IOException {
+        int numShards = (int) instance.getAtomicLong(name + ".shards").get();
+        for (int i = 0; i < numShards; i++) {
+            new HazelcastDirectory(instance, HShards.shardName(name, i), HazelcastDirectory.StorageMode.CHUNKED)
+                    .destroy();
+        }
+        instance.getAtomicLong(name + ".shards").destroy();
+    }
+}
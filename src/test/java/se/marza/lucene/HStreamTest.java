@@ -0,0 +1,143 @@
+package se.marza.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.Test;
+
+/**
+ * Round-trips primitives that straddle block edges through the heap and off-heap streams,
+ * checked against {@link ByteArrayDataOutput} and {@link ByteArrayDataInput}.
+ *
+ * @author Marza
+ */
+public class HStreamTest {
+    private static final int[] BLOCK_SIZES = {1, 3, 7, 16, 1024};
+    private static final int VALUES = 5000;
+
+    @Test
+    public void heapStreams() throws IOException {
+        for (int blockSize : BLOCK_SIZES) {
+            HFile file = new HFile(null, blockSize);
+            byte[] expected = write(new HOutputStream("heap", file), blockSize);
+            check(new HInputStream(file, "heap"), expected, blockSize);
+        }
+    }
+
+    @Test
+    public void directStreams() throws IOException {
+        for (int blockSize : BLOCK_SIZES) {
+            HDirectFile file = new HDirectFile(null, blockSize);
+            byte[] expected = write(new HDirectOutputStream("direct", file), blockSize);
+            check(new HDirectInputStream(file, "direct"), expected, blockSize);
+        }
+    }
+
+    private static byte[] write(IndexOutput out, int blockSize) throws IOException {
+        byte[] bytes = new byte[VALUES * 16];
+        ByteArrayDataOutput expected = new ByteArrayDataOutput(bytes);
+        writeValues(new Random(blockSize), out);
+        writeValues(new Random(blockSize), expected);
+        assertEquals(expected.getPosition(), out.getFilePointer());
+        out.close();
+        byte[] written = new byte[expected.getPosition()];
+        System.arraycopy(bytes, 0, written, 0, written.length);
+        return written;
+    }
+
+    private static void check(IndexInput in, byte[] expected, int blockSize) throws IOException {
+        assertEquals(expected.length, in.length());
+        readValues(new Random(blockSize), in, new ByteArrayDataInput(expected));
+        assertEquals(expected.length, in.getFilePointer());
+
+        // the same values read through a slice starting mid-block
+        int offset = Math.min(5, expected.length);
+        IndexInput slice = in.slice("slice", offset, expected.length - offset);
+        ByteArrayDataInput reference = new ByteArrayDataInput(expected, offset, expected.length - offset);
+        while (reference.getPosition() + 8 <= expected.length) {
+            assertEquals(reference.readLong(), slice.readLong());
+        }
+
+        RandomAccessInput random = in.randomAccessSlice(0, expected.length);
+        Random positions = new Random(blockSize);
+        for (int i = 0; i < VALUES; i++) {
+            int pos = positions.nextInt(expected.length - 8);
+            ByteArrayDataInput at = new ByteArrayDataInput(expected, pos, 8);
+            assertEquals(at.readLong(), random.readLong(pos));
+            at.setPosition(pos);
+            assertEquals(at.readInt(), random.readInt(pos));
+            at.setPosition(pos);
+            assertEquals(at.readShort(), random.readShort(pos));
+            assertEquals(expected[pos], random.readByte(pos));
+        }
+        in.close();
+    }
+
+    private static void writeValues(Random random, DataOutput out) throws IOException {
+        for (int i = 0; i < VALUES; i++) {
+            long value = random.nextLong() >>> random.nextInt(64);
+            switch (random.nextInt(7)) {
+                case 0:
+                    out.writeByte((byte) value);
+                    break;
+                case 1:
+                    out.writeShort((short) value);
+                    break;
+                case 2:
+                    out.writeInt((int) value);
+                    break;
+                case 3:
+                    out.writeLong(value);
+                    break;
+                case 4:
+                    out.writeVInt((int) value);
+                    break;
+                case 5:
+                    out.writeVLong(value & Long.MAX_VALUE);
+                    break;
+                default:
+                    out.writeString(Long.toString(value, 36));
+                    break;
+            }
+        }
+    }
+
+    private static void readValues(Random random, DataInput in, DataInput expected) throws IOException {
+        for (int i = 0; i < VALUES; i++) {
+            random.nextLong();
+            random.nextInt(64);
+            switch (random.nextInt(7)) {
+                case 0:
+                    assertEquals(expected.readByte(), in.readByte());
+                    break;
+                case 1:
+                    assertEquals(expected.readShort(), in.readShort());
+                    break;
+                case 2:
+                    assertEquals(expected.readInt(), in.readInt());
+                    break;
+                case 3:
+                    assertEquals(expected.readLong(), in.readLong());
+                    break;
+                case 4:
+                    assertEquals(expected.readVInt(), in.readVInt());
+                    break;
+                case 5:
+                    assertEquals(expected.readVLong(), in.readVLong());
+                    break;
+                default:
+                    assertEquals(expected.readString(), in.readString());
+                    break;
+            }
+        }
+    }
+}
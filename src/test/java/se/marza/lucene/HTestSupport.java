@@ -0,0 +1,36 @@
+package se.marza.lucene;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * Hazelcast members for tests.
+ *
+ * @author Marza
+ */
+final class HTestSupport {
+
+    private HTestSupport() {
+    }
+
+    /**
+     * @return configuration of a member set up with {@link HazelcastDirectory#configure}, that only joins
+     * members on this host.
+     */
+    static Config newConfig() {
+        Config config = HazelcastDirectory.configure(new Config());
+        config.setProperty("hazelcast.logging.type", "none");
+        config.setProperty("hazelcast.health.monitoring.level", "OFF");
+        config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+        config.getNetworkConfig().getJoin().getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+
+    /**
+     * @return new member, to be shut down by the test.
+     */
+    static HazelcastInstance newInstance() {
+        return Hazelcast.newHazelcastInstance(newConfig());
+    }
+}